@@ -0,0 +1,94 @@
+package de.imbei.httpqueueserver.benchmarks;
+
+import de.imbei.httpqueueserver.RequestData;
+import de.imbei.httpqueueserver.RequestManager;
+import de.imbei.httpqueueserver.RequestQueue;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.servlet.AsyncContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Expiry of a deep queue: the queue is filled with asynchronous requests
+ * whose deadlines have passed, then the expiry scheduler is started and
+ * the time until all clients have received their timeout responses is measured.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CleanupBenchmark {
+
+    @Param({"10000", "100000"})
+    private int queueDepth;
+
+    private RequestManager requestManager;
+    private RequestQueue queue;
+    private final AtomicInteger completedRequests = new AtomicInteger();
+    // The requests expire 1 ms after they have been received.
+    private final Map<String, String> headers = Collections.singletonMap("X-Request-Timeout", "0.001");
+    private final byte[] body = new byte[0];
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        requestManager = RequestManager.getInstance();
+        queue = requestManager.getQueue(null);
+    }
+
+    @Setup(Level.Invocation)
+    public void fillQueue() throws IOException, InterruptedException {
+        completedRequests.set(0);
+        for (int i = 0; i < queueDepth; i++) {
+            AsyncContext asyncContext = ServletStubs.asyncContext(ServletStubs.response(), 
+                    completedRequests::incrementAndGet);
+            requestManager.relayRequestAsync(
+                    ServletStubs.request("GET", "benchmark", headers, body, asyncContext), queue);
+        }
+        // Let the last deadline pass.
+        Thread.sleep(2);
+    }
+
+    @Benchmark
+    public int expire() throws InterruptedException {
+        requestManager.startCleanUpTask(60000L, 1L);
+        try {
+            while (completedRequests.get() < queueDepth) {
+                Thread.onSpinWait();
+            }
+        } finally {
+            requestManager.stopCleanUpTask();
+        }
+        return completedRequests.get();
+    }
+
+    // Skips the cancelled entries that the queue keeps until they are reached.
+    @TearDown(Level.Invocation)
+    public void drainQueue() throws InterruptedException {
+        List<RequestData> requests;
+        do {
+            requests = requestManager.popRequests(queue, 0, 1000, 0, "benchmark");
+            for (RequestData requestData : requests) {
+                requestData.release();
+            }
+        } while (!requests.isEmpty());
+    }
+
+}
@@ -0,0 +1,310 @@
+package de.imbei.httpqueueserver.benchmarks;
+
+import de.imbei.httpqueueserver.PopRequestServlet;
+import de.imbei.httpqueueserver.RequestManager;
+import de.imbei.httpqueueserver.RequestRelayServlet;
+import de.imbei.httpqueueserver.ResponseServlet;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.apache.catalina.Context;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.Wrapper;
+import org.apache.catalina.startup.Tomcat;
+
+/**
+ * End-to-end load test on localhost. Starts the server in an embedded Tomcat,
+ * runs a {@link SimulatedPoller} and sends requests to /relay with open-loop
+ * Poisson arrivals, i.e., new requests are sent at the given rate regardless of
+ * how many requests are still waiting for their responses.
+ * Each arrival rate is run for the given duration. The latencies are measured
+ * from the time at which a request was due, so that a stalled client does not
+ * hide the delay of the requests it should have sent (coordinated omission).
+ * At the end, the saturation curve (achieved throughput and latency per
+ * arrival rate) is printed.
+ *
+ * The options are passed as key=value arguments:
+ * <ul>
+ * <li>rates: comma-separated arrival rates in requests per second (default: 50,100,200,400,800)</li>
+ * <li>duration: seconds per rate (default: 10)</li>
+ * <li>warmup: seconds at the first rate before the measurement starts (default: 5)</li>
+ * <li>bodySize: bytes of the request and response bodies (default: 1024)</li>
+ * <li>pollers: number of polling threads (default: 2)</li>
+ * <li>batchSize: requests per pop (default: 10)</li>
+ * <li>latencyMillis: mean processing time of the simulated target server (default: 20)</li>
+ * <li>dropRate: fraction of the requests that the poller never answers (default: 0)</li>
+ * <li>errorRate: fraction of the requests that the poller answers with 502 (default: 0)</li>
+ * <li>disconnectRate: fraction of the clients that disconnect before the response (default: 0)</li>
+ * <li>disconnectAfterMillis: time after which these clients disconnect (default: 50)</li>
+ * <li>reportDir: directory for the percentile distributions in the HdrHistogram format</li>
+ * <li>server.NAME: init parameter NAME of the RequestRelayServlet
+ * (default: server.requestProcessingTimeoutSeconds=5)</li>
+ * </ul>
+ */
+public class LoadTest {
+
+    // Keeps the logger configuration from being garbage collected
+    private static final Logger TOMCAT_LOGGER = Logger.getLogger("org.apache");
+
+    private final Map<String, String> options;
+    private final HttpClient client;
+    private final byte[] body;
+    private URI baseUri;
+
+    private static final class StepResult {
+        final int rate;
+        final int sent;
+        final double throughput;
+        final Histogram latency;
+        final Map<String, Long> outcomes;
+        final int queuedRequests;
+
+        StepResult(int rate, int sent, double throughput, Histogram latency,
+                Map<String, Long> outcomes, int queuedRequests) {
+            this.rate = rate;
+            this.sent = sent;
+            this.throughput = throughput;
+            this.latency = latency;
+            this.outcomes = outcomes;
+            this.queuedRequests = queuedRequests;
+        }
+    }
+
+    public LoadTest(Map<String, String> options) {
+        this.options = options;
+        ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "load-test-client");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .executor(executor)
+                .build();
+        this.body = new byte[getInt("bodySize", 1024)];
+        ThreadLocalRandom.current().nextBytes(body);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        options.put("server.requestProcessingTimeoutSeconds", "5");
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (separator < 0) {
+                System.err.println("Ignoring argument \"" + arg + "\", expected key=value");
+                continue;
+            }
+            options.put(arg.substring(0, separator), arg.substring(separator + 1));
+        }
+        TOMCAT_LOGGER.setLevel(Level.WARNING);
+        new LoadTest(options).run();
+        System.exit(0);
+    }
+
+    public void run() throws Exception {
+        Path baseDir = Files.createTempDirectory("httpqueue-loadtest");
+        Tomcat tomcat = startServer(baseDir);
+        SimulatedPoller poller = new SimulatedPoller(client, baseUri,
+                getInt("pollers", 2), getInt("batchSize", 10),
+                getDouble("latencyMillis", 20), getDouble("dropRate", 0),
+                getDouble("errorRate", 0), body.length);
+        poller.start();
+
+        String[] rates = options.getOrDefault("rates", "50,100,200,400,800").split(",");
+        List<StepResult> results = new ArrayList<>();
+        try {
+            // Lets the JIT compile the code paths and the clients open their connections.
+            int warmup = getInt("warmup", 5);
+            if (warmup > 0) {
+                runStep(Integer.parseInt(rates[0].trim()), warmup);
+            }
+            for (String rate : rates) {
+                StepResult result = runStep(Integer.parseInt(rate.trim()), getInt("duration", 10));
+                printStep(result);
+                writeReport(result);
+                results.add(result);
+            }
+        } finally {
+            poller.stop();
+            tomcat.stop();
+            tomcat.destroy();
+        }
+        printSaturationCurve(results);
+        System.out.println("Requests dropped by the poller: " + poller.getDroppedRequests());
+    }
+
+    private Tomcat startServer(Path baseDir) throws LifecycleException {
+        Tomcat tomcat = new Tomcat();
+        tomcat.setBaseDir(baseDir.toString());
+        tomcat.setPort(getInt("port", 0));
+        tomcat.getConnector();
+        Context context = tomcat.addContext("", baseDir.toString());
+
+        Wrapper relay = Tomcat.addServlet(context, "RequestRelayServlet", new RequestRelayServlet());
+        relay.setAsyncSupported(true);
+        relay.setLoadOnStartup(1);
+        for (Map.Entry<String, String> option : options.entrySet()) {
+            if (option.getKey().startsWith("server.")) {
+                relay.addInitParameter(option.getKey().substring("server.".length()),
+                        option.getValue());
+            }
+        }
+        context.addServletMappingDecoded("/relay/*", "RequestRelayServlet");
+        Tomcat.addServlet(context, "PopRequestServlet", new PopRequestServlet());
+        context.addServletMappingDecoded("/pop-request", "PopRequestServlet");
+        Tomcat.addServlet(context, "ResponseServlet", new ResponseServlet());
+        context.addServletMappingDecoded("/response", "ResponseServlet");
+
+        tomcat.start();
+        baseUri = URI.create("http://localhost:" + tomcat.getConnector().getLocalPort() + "/");
+        return tomcat;
+    }
+
+    private StepResult runStep(int rate, int durationSeconds) throws InterruptedException {
+        long durationNanos = TimeUnit.SECONDS.toNanos(durationSeconds);
+        double disconnectRate = getDouble("disconnectRate", 0);
+        Duration disconnectAfter = Duration.ofMillis(getInt("disconnectAfterMillis", 50));
+        Histogram latency = new ConcurrentHistogram(3);
+        Map<String, LongAdder> outcomes = new ConcurrentHashMap<>();
+        AtomicInteger inFlight = new AtomicInteger();
+        LongAdder succeeded = new LongAdder();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        long start = System.nanoTime();
+        long end = start + durationNanos;
+        long next = start;
+        int sent = 0;
+        while (next < end) {
+            long now = System.nanoTime();
+            if (next > now) {
+                LockSupport.parkNanos(next - now);
+            }
+            long intendedStart = next;
+            boolean disconnect = random.nextDouble() < disconnectRate;
+            HttpRequest.Builder builder = HttpRequest.newBuilder(baseUri.resolve("relay/load/" + sent))
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(body));
+            if (disconnect) {
+                // The client closes the connection when the timeout is reached.
+                builder.timeout(disconnectAfter);
+            }
+            inFlight.incrementAndGet();
+            client.sendAsync(builder.build(), HttpResponse.BodyHandlers.discarding())
+                    .whenComplete((response, ex) -> {
+                        String outcome;
+                        if (ex == null) {
+                            latency.recordValue((System.nanoTime() - intendedStart) / 1000);
+                            outcome = String.valueOf(response.statusCode());
+                            if (response.statusCode() == 200) {
+                                succeeded.increment();
+                            }
+                        } else if (disconnect && (ex instanceof HttpTimeoutException
+                                || ex.getCause() instanceof HttpTimeoutException)) {
+                            outcome = "disconnected";
+                        } else {
+                            outcome = "error";
+                        }
+                        outcomes.computeIfAbsent(outcome, key -> new LongAdder()).increment();
+                        inFlight.decrementAndGet();
+                    });
+            sent++;
+            // exponentially distributed inter-arrival times
+            next += (long) (-Math.log(1 - random.nextDouble()) * TimeUnit.SECONDS.toNanos(1) / rate);
+        }
+        int queuedRequests = RequestManager.getInstance().getQueuedRequests();
+
+        // Wait for the responses, at most until the requests have timed out.
+        long waitEnd = System.nanoTime() + TimeUnit.SECONDS.toNanos(
+                getInt("server.requestProcessingTimeoutSeconds", 5) + 5);
+        while (inFlight.get() > 0 && System.nanoTime() < waitEnd) {
+            Thread.sleep(10);
+        }
+        Map<String, Long> outcomeCounts = new TreeMap<>();
+        outcomes.forEach((outcome, count) -> outcomeCounts.put(outcome, count.sum()));
+        if (inFlight.get() > 0) {
+            outcomeCounts.put("unfinished", (long) inFlight.get());
+        }
+        double throughput = succeeded.sum() / (durationNanos / 1e9);
+        return new StepResult(rate, sent, throughput, latency, outcomeCounts, queuedRequests);
+    }
+
+    private static void printStep(StepResult result) {
+        Histogram latency = result.latency;
+        System.out.printf("rate %d/s: sent %d, throughput %.1f/s, queued at end %d, "
+                + "latency ms p50 %.1f p90 %.1f p99 %.1f p99.9 %.1f max %.1f, outcomes %s%n",
+                result.rate, result.sent, result.throughput, result.queuedRequests,
+                millis(latency, 50), millis(latency, 90), millis(latency, 99),
+                millis(latency, 99.9), latency.getMaxValue() / 1000.0, result.outcomes);
+    }
+
+    private static void printSaturationCurve(List<StepResult> results) {
+        System.out.println();
+        System.out.println("Saturation curve");
+        System.out.printf("%10s %12s %10s %10s %10s %10s %10s%n",
+                "offered/s", "achieved/s", "p50 ms", "p99 ms", "p99.9 ms", "max ms", "non-200");
+        for (StepResult result : results) {
+            long failures = result.outcomes.entrySet().stream()
+                    .filter(outcome -> !outcome.getKey().equals("200"))
+                    .mapToLong(Map.Entry::getValue)
+                    .sum();
+            System.out.printf("%10d %12.1f %10.1f %10.1f %10.1f %10.1f %10d%n",
+                    result.rate, result.throughput, millis(result.latency, 50),
+                    millis(result.latency, 99), millis(result.latency, 99.9),
+                    result.latency.getMaxValue() / 1000.0, failures);
+        }
+    }
+
+    // Writes the percentile distribution, which can be plotted with the HdrHistogram tools.
+    private void writeReport(StepResult result) throws IOException {
+        String reportDir = options.get("reportDir");
+        if (reportDir == null) {
+            return;
+        }
+        File file = Paths.get(reportDir, "latency-" + result.rate + ".hgrm").toFile();
+        file.getParentFile().mkdirs();
+        try (PrintStream out = new PrintStream(file, "UTF-8")) {
+            // The values are recorded in microseconds and reported in milliseconds.
+            result.latency.outputPercentileDistribution(out, 1000.0);
+        }
+    }
+
+    private static double millis(Histogram histogram, double percentile) {
+        return histogram.getValueAtPercentile(percentile) / 1000.0;
+    }
+
+    private int getInt(String name, int defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    private double getDouble(String name, double defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : Double.parseDouble(value.trim());
+    }
+
+}
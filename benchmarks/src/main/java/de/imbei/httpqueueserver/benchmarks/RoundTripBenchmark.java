@@ -0,0 +1,110 @@
+package de.imbei.httpqueueserver.benchmarks;
+
+import de.imbei.httpqueueserver.RequestData;
+import de.imbei.httpqueueserver.RequestManager;
+import de.imbei.httpqueueserver.RequestQueue;
+import de.imbei.httpqueueserver.ResponseData;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The complete round trip of a relayed request: clients relay requests and
+ * wait for the responses (like with asyncRelay=false), while polling modules
+ * pop the requests, serialize them with the binary protocol and register
+ * the responses.
+ * The number of clients and polling modules can be changed with the option
+ * -tg, e.g. "-tg 16,2" for 16 clients and 2 polling modules.
+ * Requests that are still queued when an iteration ends are answered by
+ * the timeout of 5 seconds.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Group)
+public class RoundTripBenchmark {
+
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    // Bodies larger than 1 MiB are stored in temporary files.
+    @Param({"0", "1024", "65536", "4194304"})
+    private int bodySize;
+
+    private RequestManager requestManager;
+    private RequestQueue queue;
+    private byte[] body;
+    private final Map<String, String> headers = new HashMap<>();
+    private final DataOutputStream discard = new DataOutputStream(OutputStream.nullOutputStream());
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        requestManager = RequestManager.getInstance();
+        requestManager.startCleanUpTask(TIMEOUT_MILLIS, 10L);
+        queue = requestManager.getQueue(null);
+        body = new byte[bodySize];
+        new Random(42).nextBytes(body);
+        headers.put("Content-Type", "application/octet-stream");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        requestManager.stopCleanUpTask();
+    }
+
+    @Benchmark
+    @Group("roundTrip")
+    @GroupThreads(4)
+    public void client() throws InterruptedException, IOException {
+        requestManager.relayRequest(
+                ServletStubs.request("POST", "benchmark", headers, body, null),
+                ServletStubs.response(), queue);
+    }
+
+    @Benchmark
+    @Group("roundTrip")
+    @GroupThreads(1)
+    public boolean poller() throws InterruptedException, IOException {
+        List<RequestData> requests = requestManager.popRequests(queue, 1, 10, 0, "benchmark");
+        boolean registered = false;
+        for (RequestData requestData : requests) {
+            try {
+                // Like the binary protocol of /pop-request
+                requestData.writeBinary(discard);
+            } finally {
+                requestData.release();
+            }
+            ResponseData responseData = new ResponseData();
+            responseData.setRequestId(requestData.getRequestId());
+            responseData.setStatusCode(200);
+            responseData.setHeaders(Collections.singletonMap("Content-Type",
+                    Collections.singletonList("application/octet-stream")));
+            responseData.setBody(body);
+            registered |= requestManager.registerResponse(responseData);
+        }
+        return registered;
+    }
+
+}
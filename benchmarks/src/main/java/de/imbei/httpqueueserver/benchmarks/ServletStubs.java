@@ -0,0 +1,160 @@
+package de.imbei.httpqueueserver.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Map;
+import javax.servlet.AsyncContext;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Minimal stand-ins for the servlet objects, so that the RequestManager
+ * can be driven without a servlet container.
+ * Only the methods used by the RequestManager are implemented, all other
+ * methods return default values.
+ */
+public final class ServletStubs {
+
+    private ServletStubs() {}
+
+    /**
+     * Creates a request to /relay/{path}.
+     *
+     * @param method the HTTP method
+     * @param path the path below /relay
+     * @param headers the headers of the request
+     * @param body the body of the request
+     * @param asyncContext returned by startAsync(), may be null
+     * @return the request
+     */
+    public static HttpServletRequest request(String method, String path,
+            Map<String, String> headers, byte[] body, AsyncContext asyncContext) {
+        ServletInputStream in = inputStream(body);
+        return stub(HttpServletRequest.class, (methodName, args) -> {
+            switch (methodName) {
+                case "getMethod":
+                    return method;
+                case "getContextPath":
+                    return "";
+                case "getServletPath":
+                    return "/relay";
+                case "getRequestURI":
+                    return "/relay/" + path;
+                case "getHeaderNames":
+                    return Collections.enumeration(headers.keySet());
+                case "getHeader":
+                    return headers.get((String) args[0]);
+                case "getInputStream":
+                    return in;
+                case "startAsync":
+                    return asyncContext;
+                default:
+                    return null;
+            }
+        });
+    }
+
+    // Creates a response that discards the body.
+    public static HttpServletResponse response() {
+        ServletOutputStream out = new ServletOutputStream() {
+            @Override
+            public void write(int b) {}
+
+            @Override
+            public void write(byte[] b, int off, int len) {}
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener) {}
+        };
+        return stub(HttpServletResponse.class, (methodName, args) ->
+                methodName.equals("getOutputStream") ? out : null);
+    }
+
+    /**
+     * Creates an asynchronous context that runs the tasks passed to start()
+     * on the calling thread.
+     *
+     * @param response returned by getResponse()
+     * @param onComplete run when the request is completed
+     * @return the asynchronous context
+     */
+    public static AsyncContext asyncContext(HttpServletResponse response, Runnable onComplete) {
+        return stub(AsyncContext.class, (methodName, args) -> {
+            switch (methodName) {
+                case "getResponse":
+                    return response;
+                case "start":
+                    ((Runnable) args[0]).run();
+                    return null;
+                case "complete":
+                    onComplete.run();
+                    return null;
+                default:
+                    return null;
+            }
+        });
+    }
+
+    private static ServletInputStream inputStream(byte[] body) {
+        ByteArrayInputStream in = new ByteArrayInputStream(body);
+        return new ServletInputStream() {
+            @Override
+            public int read() {
+                return in.read();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                return in.read(b, off, len);
+            }
+
+            @Override
+            public boolean isFinished() {
+                return in.available() == 0;
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setReadListener(ReadListener readListener) {}
+        };
+    }
+
+    private interface Handler {
+        Object invoke(String methodName, Object[] args) throws IOException;
+    }
+
+    private static <T> T stub(Class<T> type, Handler handler) {
+        Object proxy = Proxy.newProxyInstance(ServletStubs.class.getClassLoader(),
+                new Class<?>[]{type}, (self, method, args) -> {
+                    Object result = handler.invoke(method.getName(), args);
+                    if (result == null && method.getReturnType().isPrimitive()
+                            && method.getReturnType() != void.class) {
+                        return defaultValue(method.getReturnType());
+                    }
+                    return result;
+                });
+        return type.cast(proxy);
+    }
+
+    // Returns 0 or false for the primitive type.
+    private static Object defaultValue(Class<?> type) {
+        return Array.get(Array.newInstance(type, 1), 0);
+    }
+
+}
@@ -0,0 +1,149 @@
+package de.imbei.httpqueueserver.benchmarks;
+
+import de.imbei.httpqueueserver.BinaryFrames;
+import de.imbei.httpqueueserver.RequestData;
+import de.imbei.httpqueueserver.ResponseData;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Polling module for the load test. Pops the requests via /pop-request with
+ * the binary protocol and answers each request via /response after a random
+ * processing time, which is exponentially distributed around the target latency.
+ * Some requests can be left unanswered or answered with an error to inject failures.
+ */
+public class SimulatedPoller {
+
+    private static final Logger LOGGER = Logger.getLogger(SimulatedPoller.class.getName());
+
+    private final HttpClient client;
+    private final URI baseUri;
+    private final int threads;
+    private final int batchSize;
+    private final double latencyMillis;
+    // Fraction of the requests that are never answered
+    private final double dropRate;
+    // Fraction of the requests that are answered with 502
+    private final double errorRate;
+    private final byte[] responseBody;
+
+    private final List<Thread> pollingThreads = new ArrayList<>();
+    // Sends the responses when their processing time is over
+    private final ScheduledExecutorService responder = Executors.newScheduledThreadPool(2);
+    private final LongAdder droppedRequests = new LongAdder();
+    private volatile boolean running = false;
+
+    public SimulatedPoller(HttpClient client, URI baseUri, int threads, int batchSize,
+            double latencyMillis, double dropRate, double errorRate, int responseBodySize) {
+        this.client = client;
+        this.baseUri = baseUri;
+        this.threads = threads;
+        this.batchSize = batchSize;
+        this.latencyMillis = latencyMillis;
+        this.dropRate = dropRate;
+        this.errorRate = errorRate;
+        this.responseBody = new byte[responseBodySize];
+    }
+
+    public void start() {
+        running = true;
+        for (int i = 0; i < threads; i++) {
+            Thread thread = new Thread(this::poll, "simulated-poller-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            pollingThreads.add(thread);
+        }
+    }
+
+    public void stop() throws InterruptedException {
+        running = false;
+        for (Thread thread : pollingThreads) {
+            thread.join();
+        }
+        responder.shutdownNow();
+    }
+
+    public long getDroppedRequests() {
+        return droppedRequests.sum();
+    }
+
+    private void poll() {
+        HttpRequest popRequest = HttpRequest.newBuilder(
+                baseUri.resolve("pop-request?w=1&max=" + batchSize))
+                .header("Accept", BinaryFrames.MEDIA_TYPE)
+                .POST(HttpRequest.BodyPublishers.noBody())
+                .build();
+        while (running) {
+            try {
+                HttpResponse<InputStream> response = client.send(popRequest,
+                        HttpResponse.BodyHandlers.ofInputStream());
+                try (DataInputStream in = new DataInputStream(
+                        new BufferedInputStream(response.body()))) {
+                    RequestData requestData;
+                    while ((requestData = RequestData.readBinary(in, Long.MAX_VALUE)) != null) {
+                        requestData.release();
+                        process(requestData.getRequestId());
+                    }
+                }
+            } catch (IOException ex) {
+                LOGGER.log(Level.WARNING, "Could not pop requests", ex);
+            } catch (InterruptedException ex) {
+                return;
+            }
+        }
+    }
+
+    private void process(int requestId) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (random.nextDouble() < dropRate) {
+            droppedRequests.increment();
+            return;
+        }
+        int statusCode = random.nextDouble() < errorRate ? 502 : 200;
+        long delayMicros = (long) (-Math.log(1 - random.nextDouble()) * latencyMillis * 1000);
+        responder.schedule(() -> respond(requestId, statusCode), delayMicros, TimeUnit.MICROSECONDS);
+    }
+
+    private void respond(int requestId, int statusCode) {
+        ResponseData responseData = new ResponseData();
+        responseData.setRequestId(requestId);
+        responseData.setStatusCode(statusCode);
+        responseData.setHeaders(Collections.singletonMap("Content-Type",
+                Collections.singletonList("application/octet-stream")));
+        responseData.setBody(responseBody);
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        try {
+            responseData.writeBinary(new DataOutputStream(frame));
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        HttpRequest request = HttpRequest.newBuilder(baseUri.resolve("response"))
+                .header("Content-Type", BinaryFrames.MEDIA_TYPE)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(frame.toByteArray()))
+                .build();
+        client.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+                .exceptionally(ex -> {
+                    LOGGER.log(Level.WARNING, "Could not send response for request " + requestId, ex);
+                    return null;
+                });
+    }
+
+}
@@ -0,0 +1,221 @@
+package de.imbei.httpqueueserver.launcher;
+
+import de.imbei.httpqueueserver.DebugServlet;
+import de.imbei.httpqueueserver.LeaseServlet;
+import de.imbei.httpqueueserver.MetricsServlet;
+import de.imbei.httpqueueserver.PollerEndpoint;
+import de.imbei.httpqueueserver.PopRequestServlet;
+import de.imbei.httpqueueserver.RequestRelayServlet;
+import de.imbei.httpqueueserver.ResponseServlet;
+import de.imbei.httpqueueserver.StatusServlet;
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.servlet.Servlet;
+import javax.websocket.DeploymentException;
+import javax.websocket.server.ServerContainer;
+import org.apache.catalina.Context;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.Wrapper;
+import org.apache.catalina.servlets.DefaultServlet;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.tomcat.websocket.server.WsSci;
+
+/**
+ * Runs the HTTP Queue Server without a separate servlet container.
+ * The servlets are served by an embedded Tomcat, which is configured by a
+ * properties file instead of the web.xml. The path of the file is passed as
+ * the first argument or in the environment variable HTTPQUEUE_CONFIG.
+ * Each setting can be overridden by an environment variable with the prefix
+ * HTTPQUEUE_, e.g. HTTPQUEUE_ASYNC_RELAY for asyncRelay.
+ *
+ * Besides port, contextPath and virtualThreads, the settings are passed as
+ * init parameters to the RequestRelayServlet.
+ * On Java 21 or later, each exchange runs on its own virtual thread, so that
+ * blocked clients and long polls do not occupy threads of a fixed pool.
+ */
+public class StandaloneServer {
+
+    private static final Logger LOGGER = Logger.getLogger(StandaloneServer.class.getName());
+
+    private static final String ENVIRONMENT_PREFIX = "HTTPQUEUE_";
+    private static final String CONFIG_VARIABLE = ENVIRONMENT_PREFIX + "CONFIG";
+
+    private final Properties config;
+    private Tomcat tomcat;
+    private ExecutorService virtualThreadExecutor;
+
+    public StandaloneServer(Properties config) {
+        this.config = config;
+    }
+
+    public static void main(String[] args) throws IOException, LifecycleException, DeploymentException {
+        String configFile = args.length > 0 ? args[0] : System.getenv(CONFIG_VARIABLE);
+        Properties config = loadConfig(configFile == null ? null : Paths.get(configFile), System.getenv());
+        StandaloneServer server = new StandaloneServer(config);
+        server.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(server::stop, "standalone-server-shutdown"));
+        server.tomcat.getServer().await();
+    }
+
+    /**
+     * Reads the settings from the properties file and the environment.
+     *
+     * @param configFile the properties file, may be null
+     * @param environment the environment variables
+     * @return the settings, the environment variables take precedence over the file
+     * @throws IOException if the file cannot be read
+     */
+    public static Properties loadConfig(Path configFile, Map<String, String> environment) throws IOException {
+        Properties config = new Properties();
+        // Defaults of the web.xml
+        config.setProperty("expiryCheckIntervalMillis", "1000");
+        config.setProperty("requestBodyMemoryThresholdBytes", "1048576");
+        config.setProperty("asyncRelay", "true");
+        if (configFile != null) {
+            try (Reader reader = Files.newBufferedReader(configFile, StandardCharsets.UTF_8)) {
+                config.load(reader);
+            }
+        }
+        for (Map.Entry<String, String> variable : environment.entrySet()) {
+            String name = variable.getKey();
+            if (name.startsWith(ENVIRONMENT_PREFIX) && !name.equals(CONFIG_VARIABLE)) {
+                config.setProperty(toPropertyName(name.substring(ENVIRONMENT_PREFIX.length())),
+                        variable.getValue());
+            }
+        }
+        return config;
+    }
+
+    // Converts e.g. ASYNC_RELAY to asyncRelay.
+    private static String toPropertyName(String variableName) {
+        StringBuilder name = new StringBuilder();
+        boolean upperCase = false;
+        for (char c : variableName.toLowerCase(Locale.ROOT).toCharArray()) {
+            if (c == '_') {
+                upperCase = name.length() > 0;
+            } else {
+                name.append(upperCase ? Character.toUpperCase(c) : c);
+                upperCase = false;
+            }
+        }
+        return name.toString();
+    }
+
+    public void start() throws LifecycleException, DeploymentException {
+        int port = getIntSetting("port", 8080);
+        String contextPath = config.getProperty("contextPath", "/HttpQueueServer").trim();
+        if (contextPath.equals("/")) {
+            contextPath = "";
+        }
+
+        tomcat = new Tomcat();
+        tomcat.setPort(port);
+        try {
+            tomcat.setBaseDir(Files.createTempDirectory("httpqueueserver").toString());
+        } catch (IOException ex) {
+            throw new LifecycleException("Could not create the working directory", ex);
+        }
+        if (Boolean.parseBoolean(config.getProperty("virtualThreads", "true").trim())) {
+            virtualThreadExecutor = newVirtualThreadExecutor();
+        }
+        if (virtualThreadExecutor != null) {
+            tomcat.getConnector().getProtocolHandler().setExecutor(virtualThreadExecutor);
+            LOGGER.log(Level.INFO, "Running each exchange on a virtual thread");
+        } else {
+            tomcat.getConnector();
+        }
+
+        Context context = tomcat.addContext(contextPath, null);
+        context.addServletContainerInitializer(new WsSci(), null);
+
+        Wrapper relay = Tomcat.addServlet(context, "RequestRelayServlet", new RequestRelayServlet());
+        relay.setAsyncSupported(true);
+        relay.setLoadOnStartup(1);
+        for (String name : config.stringPropertyNames()) {
+            if (!name.equals("port") && !name.equals("contextPath") && !name.equals("virtualThreads")) {
+                relay.addInitParameter(name, config.getProperty(name).trim());
+            }
+        }
+        context.addServletMappingDecoded("/relay/*", "RequestRelayServlet");
+        addServlet(context, "PopRequestServlet", new PopRequestServlet(), "/pop-request");
+        addServlet(context, "ResponseServlet", new ResponseServlet(), "/response");
+        addServlet(context, "LeaseServlet", new LeaseServlet(), "/extend-lease");
+        addServlet(context, "StatusServlet", new StatusServlet(), "/status");
+        addServlet(context, "MetricsServlet", new MetricsServlet(), "/metrics");
+        addServlet(context, "DebugServlet", new DebugServlet(), "/debug/requests");
+        // The WebSocket upgrade of /poller is done by a filter, which needs a mapped servlet.
+        addServlet(context, "default", new DefaultServlet(), "/");
+
+        tomcat.start();
+        ServerContainer serverContainer = (ServerContainer) context.getServletContext()
+                .getAttribute(ServerContainer.class.getName());
+        serverContainer.addEndpoint(PollerEndpoint.class);
+        LOGGER.log(Level.INFO, "HTTP Queue Server listening on port {0}, context path \"{1}\"",
+                new Object[]{String.valueOf(tomcat.getConnector().getLocalPort()), contextPath});
+    }
+
+    public void stop() {
+        if (tomcat == null) {
+            return;
+        }
+        try {
+            tomcat.stop();
+            tomcat.destroy();
+        } catch (LifecycleException ex) {
+            LOGGER.log(Level.WARNING, "Could not stop the server", ex);
+        }
+        // An executor set on the connector is not shut down by Tomcat.
+        if (virtualThreadExecutor != null) {
+            virtualThreadExecutor.shutdownNow();
+        }
+        tomcat = null;
+    }
+
+    private static void addServlet(Context context, String name, Servlet servlet, String pattern) {
+        Tomcat.addServlet(context, name, servlet);
+        context.addServletMappingDecoded(pattern, name);
+    }
+
+    private int getIntSetting(String name, int defaultValue) {
+        String value = config.getProperty(name);
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException ex) {
+            LOGGER.log(Level.WARNING,
+                    "Could not parse value of \"{0}\" for setting \"{1}\". Using default value",
+                    new Object[]{value, name});
+            return defaultValue;
+        }
+    }
+
+    // Virtual threads are available from Java 21 on. The launcher is compiled
+    // for Java 11, so the factory method is looked up at runtime.
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (NoSuchMethodException ex) {
+            LOGGER.log(Level.INFO, "Virtual threads are not supported by Java {0}, using a thread pool",
+                    System.getProperty("java.version"));
+        } catch (ReflectiveOperationException ex) {
+            LOGGER.log(Level.WARNING, "Could not create a virtual thread executor, using a thread pool", ex);
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,117 @@
+package de.imbei.httpqueueserver;
+
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Structured access log with the phase timestamps of completed requests
+ * (see {@link RequestTrace}), written as JSON lines.
+ * Only a sample of the requests is logged, but requests that have taken at
+ * least slowMillis are always logged.
+ * The threads that complete the requests only put the traces into a bounded
+ * buffer, a background thread writes them to the file. If the buffer is full,
+ * the traces are dropped instead of slowing down the requests.
+ */
+public class AccessLog {
+
+    private final Path file;
+    private final double sampleRate;
+    private final long slowMillis;
+    private final BlockingQueue<RequestTrace> buffer;
+    private final LongAdder droppedEntries = new LongAdder();
+
+    private volatile boolean closed = false;
+    private Thread writerThread;
+
+    /**
+     * @param file the file to which the log is appended
+     * @param sampleRate the fraction of the requests that are logged (0 to 1)
+     * @param slowMillis requests that take at least this time are always logged,
+     * 0 to disable
+     * @param bufferSize the number of traces that can wait for the writer
+     */
+    public AccessLog(Path file, double sampleRate, long slowMillis, int bufferSize) {
+        this.file = file;
+        this.sampleRate = sampleRate;
+        this.slowMillis = slowMillis;
+        this.buffer = new ArrayBlockingQueue<>(bufferSize);
+    }
+
+    public void start() throws IOException {
+        Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        writerThread = new Thread(() -> writeLoop(writer), "access-log-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    public void close() {
+        closed = true;
+        if (writerThread != null) {
+            try {
+                writerThread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // Logs the completed request if it is sampled. Does not block.
+    public void log(RequestTrace trace) {
+        if ((slowMillis <= 0 || trace.getAgeMillis() < slowMillis)
+                && ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+            return;
+        }
+        if (!buffer.offer(trace)) {
+            droppedEntries.increment();
+        }
+    }
+
+    // Number of traces that have been dropped because the buffer was full
+    public long getDroppedEntries() {
+        return droppedEntries.sum();
+    }
+
+    private void writeLoop(Writer writer) {
+        List<RequestTrace> batch = new ArrayList<>();
+        try (writer) {
+            while (!closed || !buffer.isEmpty()) {
+                RequestTrace trace = buffer.poll(1, TimeUnit.SECONDS);
+                if (trace == null) {
+                    continue;
+                }
+                batch.add(trace);
+                buffer.drainTo(batch);
+                for (RequestTrace entry : batch) {
+                    StringWriter line = new StringWriter();
+                    entry.write(new JsonWriter(line));
+                    writer.write(line.toString());
+                    writer.write('\n');
+                }
+                batch.clear();
+                writer.flush();
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(AccessLog.class.getName()).log(Level.SEVERE,
+                    "Could not write access log " + file, ex);
+        } catch (InterruptedException ex) {
+            // The server is stopping.
+        }
+    }
+
+}
@@ -0,0 +1,98 @@
+package de.imbei.httpqueueserver;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides whether new requests are accepted, based on the number of queued
+ * requests and the bytes held for request and response bodies.
+ * When one of the high watermarks is reached, all new requests are rejected
+ * until the usage has dropped below both low watermarks.
+ * A body of unknown size (e.g., a chunked upload) could exceed the byte limit
+ * unnoticed, so such requests are only accepted below the low watermark.
+ * A watermark of 0 means that there is no limit.
+ */
+public class AdmissionControl {
+
+    private final long highWatermarkBytes;
+    private final long lowWatermarkBytes;
+    private final int highWatermarkRequests;
+    private final int lowWatermarkRequests;
+
+    private volatile boolean rejecting = false;
+    private final LongAdder rejectedRequests = new LongAdder();
+
+    public AdmissionControl(long highWatermarkBytes, long lowWatermarkBytes,
+            int highWatermarkRequests, int lowWatermarkRequests) {
+        this.highWatermarkBytes = highWatermarkBytes;
+        this.lowWatermarkBytes = lowWatermarkBytes;
+        this.highWatermarkRequests = highWatermarkRequests;
+        this.lowWatermarkRequests = lowWatermarkRequests;
+    }
+
+    public static AdmissionControl unlimited() {
+        return new AdmissionControl(0, 0, 0, 0);
+    }
+
+    /**
+     * Checks whether a new request can be accepted.
+     *
+     * @param bytes bytes that are currently held for bodies
+     * @param requests number of requests that are currently queued
+     * @param expectedBytes announced size of the body of the new request,
+     *        or -1 if the size is unknown
+     * @return false if the request must be rejected
+     */
+    public boolean admit(long bytes, int requests, long expectedBytes) {
+        if (rejecting) {
+            if (belowLowWatermarks(bytes, requests)) {
+                rejecting = false;
+            }
+        } else if (aboveHighWatermarks(bytes, requests)) {
+            rejecting = true;
+        }
+
+        boolean admitted = !rejecting
+                && (highWatermarkBytes <= 0 || (expectedBytes < 0 
+                        ? bytes <= lowWatermarkBytes 
+                        : bytes + expectedBytes <= highWatermarkBytes));
+        if (!admitted) {
+            rejectedRequests.increment();
+        }
+        return admitted;
+    }
+
+    private boolean aboveHighWatermarks(long bytes, int requests) {
+        return (highWatermarkBytes > 0 && bytes >= highWatermarkBytes)
+                || (highWatermarkRequests > 0 && requests >= highWatermarkRequests);
+    }
+
+    private boolean belowLowWatermarks(long bytes, int requests) {
+        return (highWatermarkBytes <= 0 || bytes <= lowWatermarkBytes)
+                && (highWatermarkRequests <= 0 || requests <= lowWatermarkRequests);
+    }
+
+    public boolean isRejecting() {
+        return rejecting;
+    }
+
+    public long getRejectedRequests() {
+        return rejectedRequests.sum();
+    }
+
+    public long getHighWatermarkBytes() {
+        return highWatermarkBytes;
+    }
+
+    public long getLowWatermarkBytes() {
+        return lowWatermarkBytes;
+    }
+
+    public int getHighWatermarkRequests() {
+        return highWatermarkRequests;
+    }
+
+    public int getLowWatermarkRequests() {
+        return lowWatermarkRequests;
+    }
+
+}
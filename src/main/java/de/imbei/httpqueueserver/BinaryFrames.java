@@ -0,0 +1,193 @@
+package de.imbei.httpqueueserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary framing for requests and responses exchanged with the polling module.
+ * It can be used instead of JSON to avoid the Base64 encoding of the bodies.
+ * A polling module selects it via the "Accept" header for /pop-request and via
+ * the "Content-Type" header for /response.
+ *
+ * Each frame consists of
+ * <ul>
+ * <li>the length of the header block (int),</li>
+ * <li>the header block with the request ID and the HTTP metadata
+ * (for requests followed by the deadline, see {@link RequestData#getDeadline()}),</li>
+ * <li>the length of the body (long),</li>
+ * <li>the raw bytes of the body.</li>
+ * </ul>
+ * Several frames may follow each other in one HTTP body.
+ * All numbers are big-endian. Strings are encoded as UTF-8 and prefixed with
+ * their length in bytes (int).
+ *
+ * Large responses can be streamed to the clients while they are uploaded
+ * to /response with the media type {@link #CHUNKS_MEDIA_TYPE}.
+ * Such an upload consists of chunk frames, each with
+ * <ul>
+ * <li>the type of the frame (byte),</li>
+ * <li>the request ID (int),</li>
+ * <li>for {@link #CHUNK_HEAD}: the status code (int) and the headers,</li>
+ * <li>for {@link #CHUNK_DATA}: the length of the chunk (int) and its bytes.</li>
+ * </ul>
+ * A response starts with a head frame, followed by any number of data frames
+ * and an end frame. The frames of different responses may be interleaved,
+ * and a response may be spread over several uploads.
+ */
+public final class BinaryFrames {
+
+    public static final String MEDIA_TYPE = "application/x-httpqueue-frames";
+    public static final String CHUNKS_MEDIA_TYPE = "application/x-httpqueue-chunks";
+
+    // Types of chunk frames
+    public static final byte CHUNK_HEAD = 1;
+    public static final byte CHUNK_DATA = 2;
+    public static final byte CHUNK_END = 3;
+    // Breaks off the response, e.g., if the connection to the target server is broken.
+    public static final byte CHUNK_ABORT = 4;
+
+    private BinaryFrames() {}
+
+    public static boolean accepts(String acceptHeader) {
+        return acceptHeader != null && acceptHeader.contains(MEDIA_TYPE);
+    }
+
+    public static boolean isBinary(String contentType) {
+        return contentType != null && contentType.startsWith(MEDIA_TYPE);
+    }
+
+    public static boolean isChunked(String contentType) {
+        return contentType != null && contentType.startsWith(CHUNKS_MEDIA_TYPE);
+    }
+
+    // Writes the header block together with its length.
+    static void writeHeaderBlock(DataOutputStream out, ByteArrayOutputStream headerBlock)
+            throws IOException {
+        out.writeInt(headerBlock.size());
+        headerBlock.writeTo(out);
+    }
+
+    // Reads the header block of the next frame.
+    // Returns null if the stream ends before the frame.
+    static DataInputStream readHeaderBlock(DataInputStream in) throws IOException {
+        int first = in.read();
+        if (first == -1) {
+            return null;
+        }
+        int length = (first << 24) | (in.readUnsignedByte() << 16)
+                | (in.readUnsignedByte() << 8) | in.readUnsignedByte();
+        return new DataInputStream(new ByteArrayInputStream(readBytes(in, length)));
+    }
+
+    // Reads the given number of bytes as announced in a frame. The array grows 
+    // while the bytes arrive, so that a forged length does not allocate memory up front.
+    static byte[] readBytes(DataInputStream in, long length) throws IOException {
+        if (length < 0 || length > Integer.MAX_VALUE - 8) {
+            throw new IOException("Invalid length in frame: " + length);
+        }
+        byte[] bytes = in.readNBytes((int) length);
+        if (bytes.length < length) {
+            throw new EOFException("Frame ended after " + bytes.length 
+                    + " of " + length + " bytes");
+        }
+        return bytes;
+    }
+
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        return new String(readBytes(in, in.readInt()), StandardCharsets.UTF_8);
+    }
+
+    static void writeHeaders(DataOutputStream out, Map<String, List<String>> headers)
+            throws IOException {
+        out.writeInt(headers.size());
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            writeString(out, header.getKey());
+            out.writeInt(header.getValue().size());
+            for (String value : header.getValue()) {
+                writeString(out, value);
+            }
+        }
+    }
+
+    static Map<String, List<String>> readHeaders(DataInputStream in) throws IOException {
+        int headerCount = in.readInt();
+        Map<String, List<String>> headers = new HashMap<>();
+        for (int i = 0; i < headerCount; i++) {
+            String name = readString(in);
+            int valueCount = in.readInt();
+            if (valueCount < 0) {
+                throw new IOException("Invalid number of values for header " + name);
+            }
+            List<String> values = new ArrayList<>();
+            for (int j = 0; j < valueCount; j++) {
+                values.add(readString(in));
+            }
+            headers.put(name, values);
+        }
+        return headers;
+    }
+
+    // Returns a stream that ends after length bytes of the given stream.
+    static InputStream limit(InputStream in, long length) {
+        return new InputStream() {
+            private long remaining = length;
+
+            @Override
+            public int read() throws IOException {
+                if (remaining <= 0) {
+                    return -1;
+                }
+                int b = in.read();
+                if (b != -1) {
+                    remaining--;
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (remaining <= 0) {
+                    return -1;
+                }
+                int n = in.read(b, off, (int) Math.min(len, remaining));
+                if (n > 0) {
+                    remaining -= n;
+                }
+                return n;
+            }
+        };
+    }
+
+    // Copies exactly length bytes of the body.
+    static void copyBody(InputStream in, OutputStream out, long length) throws IOException {
+        byte[] buffer = new byte[8192];
+        long remaining = length;
+        while (remaining > 0) {
+            int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (n == -1) {
+                throw new EOFException("Body ended after " + (length - remaining)
+                        + " of " + length + " bytes");
+            }
+            out.write(buffer, 0, n);
+            remaining -= n;
+        }
+    }
+
+}
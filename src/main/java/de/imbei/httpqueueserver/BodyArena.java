@@ -0,0 +1,173 @@
+package de.imbei.httpqueueserver;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Pool of direct buffers for the request bodies that are kept in memory.
+ * While the requests wait in the queue, their bodies are stored outside of
+ * the Java heap, so that a large backlog does not have to be copied
+ * by the garbage collector again and again.
+ * The buffers are grouped in size classes, which are the powers of two from
+ * 256 bytes on. Released buffers are kept for the next body of the same size class.
+ * The total size of all buffers is limited by the capacity. If a body does
+ * not fit into the arena, the caller keeps it on the heap.
+ */
+public class BodyArena {
+
+    private static final int MIN_SIZE_CLASS_SHIFT = 8; // 256 bytes
+    private static final int MAX_SIZE_CLASS_SHIFT = 30; // 1 GiB
+
+    private final long capacity;
+
+    // Released buffers for each size class
+    private final ArrayDeque<ByteBuffer>[] freeBuffers;
+    // Size of all buffers that have been allocated and not dropped, guarded by the lock
+    private long allocatedBytes = 0;
+    // Size of the buffers in the free lists, guarded by the lock
+    private long pooledBytes = 0;
+    private final Lock lock = new ReentrantLock();
+
+    // Bytes of the bodies that are stored in the buffers in use
+    private final AtomicLong bodyBytes = new AtomicLong();
+    private final LongAdder allocations = new LongAdder();
+    private final LongAdder heapFallbacks = new LongAdder();
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BodyArena(long capacity) {
+        this.capacity = capacity;
+        this.freeBuffers = new ArrayDeque[MAX_SIZE_CLASS_SHIFT - MIN_SIZE_CLASS_SHIFT + 1];
+        for (int i = 0; i < freeBuffers.length; i++) {
+            freeBuffers[i] = new ArrayDeque<>();
+        }
+    }
+
+    // Returns the index of the smallest size class that can hold the given
+    // number of bytes or -1 if the body is too large for all size classes.
+    private static int getSizeClass(long size) {
+        if (size > 1L << MAX_SIZE_CLASS_SHIFT) {
+            return -1;
+        }
+        int shift = 64 - Long.numberOfLeadingZeros(Math.max(size, 1) - 1);
+        return Math.max(shift, MIN_SIZE_CLASS_SHIFT) - MIN_SIZE_CLASS_SHIFT;
+    }
+
+    /**
+     * Takes a buffer for a body of the given size.
+     *
+     * @param size the size of the body in bytes
+     * @return a buffer with position 0 and the size as limit,
+     * or null if there is no space left in the arena
+     */
+    public ByteBuffer allocate(long size) {
+        int sizeClass = getSizeClass(size);
+        if (sizeClass < 0) {
+            heapFallbacks.increment();
+            return null;
+        }
+        int bufferSize = 1 << (sizeClass + MIN_SIZE_CLASS_SHIFT);
+        ByteBuffer buffer;
+        lock.lock();
+        try {
+            buffer = freeBuffers[sizeClass].poll();
+            if (buffer != null) {
+                pooledBytes -= bufferSize;
+            } else if (!reserve(bufferSize)) {
+                heapFallbacks.increment();
+                return null;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(bufferSize);
+            allocations.increment();
+        }
+        buffer.clear().limit((int) size);
+        bodyBytes.addAndGet(size);
+        return buffer;
+    }
+
+    // Reserves space for a new buffer. If the capacity would be exceeded, released
+    // buffers of other size classes are dropped, beginning with the largest ones.
+    // The memory of dropped buffers is freed when they are garbage collected.
+    private boolean reserve(int bufferSize) {
+        for (int i = freeBuffers.length - 1;
+                i >= 0 && allocatedBytes + bufferSize > capacity && pooledBytes > 0; i--) {
+            ByteBuffer dropped;
+            while (allocatedBytes + bufferSize > capacity
+                    && (dropped = freeBuffers[i].poll()) != null) {
+                allocatedBytes -= dropped.capacity();
+                pooledBytes -= dropped.capacity();
+            }
+        }
+        if (allocatedBytes + bufferSize > capacity) {
+            return false;
+        }
+        allocatedBytes += bufferSize;
+        return true;
+    }
+
+    /**
+     * Returns a buffer to the pool. The buffer must not be used afterwards.
+     *
+     * @param buffer a buffer returned by {@link #allocate(long)}, with the original limit
+     */
+    public void release(ByteBuffer buffer) {
+        bodyBytes.addAndGet(-buffer.limit());
+        int sizeClass = getSizeClass(buffer.capacity());
+        lock.lock();
+        try {
+            freeBuffers[sizeClass].push(buffer);
+            pooledBytes += buffer.capacity();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Maximum size of all buffers
+    public long getCapacity() {
+        return capacity;
+    }
+
+    // Size of all buffers, including the released ones
+    public long getAllocatedBytes() {
+        lock.lock();
+        try {
+            return allocatedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Size of the buffers that hold bodies
+    public long getUsedBytes() {
+        lock.lock();
+        try {
+            return allocatedBytes - pooledBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Bytes of the bodies in the arena. The difference to the used bytes
+    // is lost to the rounding up to the size classes.
+    public long getBodyBytes() {
+        return bodyBytes.get();
+    }
+
+    // Number of direct buffers that have been allocated
+    public long getAllocations() {
+        return allocations.sum();
+    }
+
+    // Number of bodies that have been kept on the heap because they did not fit
+    public long getHeapFallbacks() {
+        return heapFallbacks.sum();
+    }
+
+}
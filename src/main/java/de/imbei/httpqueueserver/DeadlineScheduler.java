@@ -0,0 +1,102 @@
+package de.imbei.httpqueueserver;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs tasks when their deadlines have passed.
+ * The deadlines are kept in a concurrent set ordered by deadline.
+ * A background task checks the set at a fixed tick interval and only visits
+ * the entries that have actually expired.
+ */
+public class DeadlineScheduler {
+
+    /**
+     * A scheduled task that can be cancelled before its deadline.
+     */
+    public final class Timeout implements Comparable<Timeout> {
+        private final long deadline;
+        private final long sequenceNumber;
+        private final Runnable task;
+
+        private Timeout(long deadline, long sequenceNumber, Runnable task) {
+            this.deadline = deadline;
+            this.sequenceNumber = sequenceNumber;
+            this.task = task;
+        }
+
+        public long getDeadline() {
+            return deadline;
+        }
+
+        // Returns false if the task has already run or has been cancelled before.
+        public boolean cancel() {
+            return timeouts.remove(this);
+        }
+
+        @Override
+        public int compareTo(Timeout other) {
+            int result = Long.compare(deadline, other.deadline);
+            if (result == 0) {
+                result = Long.compare(sequenceNumber, other.sequenceNumber);
+            }
+            return result;
+        }
+    }
+
+    private final ConcurrentSkipListSet<Timeout> timeouts = new ConcurrentSkipListSet<>();
+    // distinguishes timeouts with the same deadline
+    private final AtomicLong sequence = new AtomicLong();
+
+    private ScheduledExecutorService executor;
+
+    // Schedules the task to run after the deadline (in epoch milliseconds).
+    public Timeout schedule(long deadline, Runnable task) {
+        Timeout timeout = new Timeout(deadline, sequence.incrementAndGet(), task);
+        timeouts.add(timeout);
+        return timeout;
+    }
+
+    public int size() {
+        return timeouts.size();
+    }
+
+    public void start(long tickMillis) {
+        executor = Executors.newSingleThreadScheduledExecutor();
+        executor.scheduleAtFixedRate(this::runExpiredTasks,
+                tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    private void runExpiredTasks() {
+        long currentTime = System.currentTimeMillis();
+        Iterator<Timeout> iterator = timeouts.iterator();
+        while (iterator.hasNext()) {
+            Timeout timeout = iterator.next();
+            if (timeout.deadline > currentTime) {
+                break;
+            }
+            // Only run the task if it has not been cancelled in the meantime.
+            if (timeouts.remove(timeout)) {
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException ex) {
+                    Logger.getLogger(DeadlineScheduler.class.getName()).log(Level.SEVERE,
+                            "Error in expired task", ex);
+                }
+            }
+        }
+    }
+
+}
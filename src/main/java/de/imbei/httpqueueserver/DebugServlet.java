@@ -0,0 +1,56 @@
+package de.imbei.httpqueueserver;
+
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * The /debug/requests endpoint lists the requests in flight with their
+ * current phase and age as JSON, the oldest first, followed by the responses
+ * that are being streamed. It helps to find requests that are stuck.
+ */
+public class DebugServlet extends HttpServlet {
+
+    private final RequestManager requestManager = RequestManager.getInstance();
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+
+        long now = System.currentTimeMillis();
+        response.setContentType("application/json");
+        JsonWriter writer = new JsonWriter(response.getWriter());
+        writer.setIndent("  ");
+        writer.beginObject();
+        writer.name("requests");
+        writer.beginArray();
+        for (RequestTrace trace : requestManager.getInFlightRequests()) {
+            trace.write(writer);
+        }
+        writer.endArray();
+        writer.name("responseStreams");
+        writer.beginArray();
+        for (ResponseStream responseStream : requestManager.getActiveResponseStreams()) {
+            writer.beginObject();
+            writer.name("requestId").value(responseStream.getRequestId());
+            writer.name("idleMillis").value(now - responseStream.getLastActivity());
+            writer.endObject();
+        }
+        writer.endArray();
+        AccessLog accessLog = requestManager.getAccessLog();
+        if (accessLog != null) {
+            writer.name("droppedAccessLogEntries").value(accessLog.getDroppedEntries());
+        }
+        writer.endObject();
+        writer.flush();
+    }
+
+    @Override
+    public String getServletInfo() {
+        return "Lists the requests in flight";
+    }
+
+}
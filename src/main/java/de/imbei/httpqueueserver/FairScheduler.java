@@ -0,0 +1,129 @@
+package de.imbei.httpqueueserver;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Pops the requests by priority and shares each priority class fairly
+ * between the clients.
+ * Requests with a lower priority value are popped first. Within a priority
+ * class, the clients are served in weighted round-robin order: a client with
+ * weight n may pop up to n requests before it is the next client's turn.
+ * To make sure that requests with a low priority are still popped while
+ * requests with a high priority keep arriving, the oldest request is popped
+ * first as soon as it has waited longer than the starvation limit.
+ */
+public class FairScheduler implements RequestScheduler {
+
+    // The requests of one client within one priority class, in the order of arrival
+    private static final class Flow {
+        final String clientKey;
+        final int weight;
+        final Deque<RequestQueue.Entry> entries = new ArrayDeque<>();
+        // Number of requests that the client may still pop in its current turn
+        int credits;
+
+        Flow(String clientKey, int weight) {
+            this.clientKey = clientKey;
+            this.weight = weight;
+            this.credits = weight;
+        }
+    }
+
+    private static final class PriorityClass {
+        final Map<String, Flow> flows = new HashMap<>();
+        // The flows in round-robin order. It is the first flow's turn.
+        final Deque<Flow> activeFlows = new ArrayDeque<>();
+    }
+
+    private final SchedulingPolicy policy;
+    private final PriorityClass[] priorityClasses;
+
+    // All entries in the order of arrival, for the starvation protection.
+    // Entries that have already been popped are removed when they reach the head.
+    private final Deque<RequestQueue.Entry> arrivals = new ArrayDeque<>();
+
+    private final Lock lock = new ReentrantLock();
+
+    public FairScheduler(SchedulingPolicy policy) {
+        this.policy = policy;
+        this.priorityClasses = new PriorityClass[policy.getPriorityLevels()];
+        for (int i = 0; i < priorityClasses.length; i++) {
+            priorityClasses[i] = new PriorityClass();
+        }
+    }
+
+    @Override
+    public void add(RequestQueue.Entry entry) {
+        lock.lock();
+        try {
+            PriorityClass priorityClass = priorityClasses[entry.priority];
+            Flow flow = priorityClass.flows.get(entry.clientKey);
+            if (flow == null) {
+                flow = new Flow(entry.clientKey, policy.getWeight(entry.clientKey));
+                priorityClass.flows.put(entry.clientKey, flow);
+                priorityClass.activeFlows.addLast(flow);
+            }
+            flow.entries.addLast(entry);
+            arrivals.addLast(entry);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public RequestQueue.Entry poll() {
+        lock.lock();
+        try {
+            RequestQueue.Entry oldest = oldestEntry();
+            if (oldest != null
+                    && System.nanoTime() - oldest.enqueueNanos >= policy.getStarvationNanos()) {
+                // The oldest entry is always the first entry of its flow.
+                PriorityClass priorityClass = priorityClasses[oldest.priority];
+                return take(priorityClass, priorityClass.flows.get(oldest.clientKey));
+            }
+
+            for (PriorityClass priorityClass : priorityClasses) {
+                Flow flow = priorityClass.activeFlows.peekFirst();
+                if (flow == null) {
+                    continue;
+                }
+                RequestQueue.Entry entry = take(priorityClass, flow);
+                flow.credits--;
+                if (flow.credits == 0 && !flow.entries.isEmpty()) {
+                    // The turn of the client is over.
+                    flow.credits = flow.weight;
+                    priorityClass.activeFlows.pollFirst();
+                    priorityClass.activeFlows.addLast(flow);
+                }
+                return entry;
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Removes the first entry of the flow. The flow is removed when it is empty.
+    private RequestQueue.Entry take(PriorityClass priorityClass, Flow flow) {
+        RequestQueue.Entry entry = flow.entries.pollFirst();
+        entry.popped = true;
+        if (flow.entries.isEmpty()) {
+            priorityClass.flows.remove(flow.clientKey);
+            priorityClass.activeFlows.remove(flow);
+        }
+        return entry;
+    }
+
+    private RequestQueue.Entry oldestEntry() {
+        while (!arrivals.isEmpty() && arrivals.peekFirst().popped) {
+            arrivals.pollFirst();
+        }
+        return arrivals.peekFirst();
+    }
+
+}
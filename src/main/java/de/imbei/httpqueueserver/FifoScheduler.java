@@ -0,0 +1,22 @@
+package de.imbei.httpqueueserver;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Pops the requests in the order of their arrival without a global lock.
+ */
+public class FifoScheduler implements RequestScheduler {
+
+    private final ConcurrentLinkedQueue<RequestQueue.Entry> queue = new ConcurrentLinkedQueue<>();
+
+    @Override
+    public void add(RequestQueue.Entry entry) {
+        queue.add(entry);
+    }
+
+    @Override
+    public RequestQueue.Entry poll() {
+        return queue.poll();
+    }
+
+}
@@ -0,0 +1,76 @@
+package de.imbei.httpqueueserver;
+
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Lets the polling module extend the leases of requests that take longer
+ * to process than the lease time.
+ * A POST to /extend-lease with one or more parameters "requestId" extends the
+ * leases of these requests by the lease time. The answer lists the IDs of the
+ * requests whose leases have been extended ("extended") and of the requests
+ * that are not leased any more ("lost"). The polling module can stop processing
+ * the lost requests, because their responses will be discarded.
+ */
+public class LeaseServlet extends HttpServlet {
+
+    private final RequestManager requestManager = RequestManager.getInstance();
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+
+        String[] requestIds = request.getParameterValues("requestId");
+        if (requestIds == null) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Missing requestId");
+            return;
+        }
+        List<Integer> extended = new ArrayList<>();
+        List<Integer> lost = new ArrayList<>();
+        for (String requestIdStr : requestIds) {
+            int requestId;
+            try {
+                requestId = Integer.parseInt(requestIdStr.trim());
+            } catch (NumberFormatException ex) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                        "Invalid requestId: " + requestIdStr);
+                return;
+            }
+            if (requestManager.extendLease(requestId)) {
+                extended.add(requestId);
+            } else {
+                lost.add(requestId);
+            }
+        }
+
+        response.setContentType("application/json");
+        JsonWriter writer = new JsonWriter(response.getWriter());
+        writer.beginObject();
+        writer.name("extended");
+        writer.beginArray();
+        for (int requestId : extended) {
+            writer.value(requestId);
+        }
+        writer.endArray();
+        writer.name("lost");
+        writer.beginArray();
+        for (int requestId : lost) {
+            writer.value(requestId);
+        }
+        writer.endArray();
+        writer.endObject();
+        writer.flush();
+    }
+
+    @Override
+    public String getServletInfo() {
+        return "Extends the leases of popped requests";
+    }
+
+}
@@ -0,0 +1,163 @@
+package de.imbei.httpqueueserver;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * The /metrics endpoint exposes counters, gauges and latency histograms
+ * in the Prometheus text format, so that the server can be scraped by Prometheus.
+ * The lines end with "\n" regardless of the platform, as required by the format.
+ */
+public class MetricsServlet extends HttpServlet {
+
+    private static final String PREFIX = "httpqueue_";
+
+    private final RequestManager requestManager = RequestManager.getInstance();
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+
+        RelayMetrics metrics = requestManager.getMetrics();
+        response.setContentType("text/plain; version=0.0.4");
+        response.setCharacterEncoding("UTF-8");
+        PrintWriter writer = response.getWriter();
+
+        writeCounter(writer, "requests_relayed_total",
+                "Requests that have been queued", metrics.getRelayedRequests());
+        writeCounter(writer, "requests_popped_total",
+                "Requests that have been popped by polling modules", metrics.getPoppedRequests());
+        writeCounter(writer, "responses_registered_total",
+                "Responses that have been accepted from polling modules",
+                metrics.getRegisteredResponses());
+        writeCounter(writer, "responses_discarded_total",
+                "Responses that have been discarded because they arrived too late or twice",
+                metrics.getDiscardedResponses());
+        writeCounter(writer, "requests_timed_out_total",
+                "Clients that have received a timeout response", metrics.getTimedOutRequests());
+        writeCounter(writer, "responses_delivered_total",
+                "Responses that have been written to clients", metrics.getDeliveredResponses());
+        writeCounter(writer, "response_delivery_failures_total",
+                "Responses that could not be written to clients", metrics.getFailedDeliveries());
+        writeCounter(writer, "requests_redelivered_total",
+                "Requests that have been queued again after their lease had ended",
+                requestManager.getRedeliveredRequests());
+        writeCounter(writer, "requests_rejected_total",
+                "Requests that have been rejected because the server was overloaded",
+                requestManager.getAdmissionControl().getRejectedRequests());
+        writeCounter(writer, "request_body_bytes_total",
+                "Bytes of request bodies that have been queued", metrics.getRequestBodyBytes());
+        writeCounter(writer, "response_body_bytes_total",
+                "Bytes of response bodies that have been written to clients",
+                metrics.getResponseBodyBytes());
+
+        writeLine(writer, "# HELP " + PREFIX + "queued_requests Requests waiting in the queue");
+        writeLine(writer, "# TYPE " + PREFIX + "queued_requests gauge");
+        for (RequestQueue queue : requestManager.getQueues()) {
+            writeLine(writer, PREFIX + "queued_requests{queue=\"" + queueLabel(queue) + "\"} "
+                    + queue.size());
+        }
+        writeLine(writer, "# HELP " + PREFIX + "queued_body_bytes Bytes of the bodies of the requests waiting in the queue");
+        writeLine(writer, "# TYPE " + PREFIX + "queued_body_bytes gauge");
+        for (RequestQueue queue : requestManager.getQueues()) {
+            writeLine(writer, PREFIX + "queued_body_bytes{queue=\"" + queueLabel(queue) + "\"} "
+                    + queue.getBodyBytes());
+        }
+        writeGauge(writer, "pending_responses",
+                "Requests whose responses have not arrived yet",
+                requestManager.getPendingResponses());
+        writeGauge(writer, "pending_response_bytes",
+                "Bytes of responses that have not been written to clients yet",
+                requestManager.getPendingResponseBytes());
+        writeGauge(writer, "held_bytes",
+                "Bytes held for request and response bodies", requestManager.getHeldBytes());
+        BodyArena bodyArena = requestManager.getBodyArena();
+        if (bodyArena != null) {
+            writeGauge(writer, "body_arena_capacity_bytes",
+                    "Maximum size of the direct buffers for request bodies", bodyArena.getCapacity());
+            writeGauge(writer, "body_arena_allocated_bytes",
+                    "Size of the direct buffers for request bodies, including the free ones",
+                    bodyArena.getAllocatedBytes());
+            writeGauge(writer, "body_arena_used_bytes",
+                    "Size of the direct buffers that hold request bodies", bodyArena.getUsedBytes());
+            writeGauge(writer, "body_arena_body_bytes",
+                    "Bytes of the request bodies in direct buffers", bodyArena.getBodyBytes());
+            writeCounter(writer, "body_arena_allocations_total",
+                    "Direct buffers that have been allocated", bodyArena.getAllocations());
+            writeCounter(writer, "body_arena_heap_fallbacks_total",
+                    "Request bodies that have been kept on the heap because the arena was full",
+                    bodyArena.getHeapFallbacks());
+        }
+        writeGauge(writer, "response_streams",
+                "Responses that are being streamed to clients", requestManager.getResponseStreams());
+        writeGauge(writer, "rejecting",
+                "1 if new requests are rejected",
+                requestManager.getAdmissionControl().isRejecting() ? 1 : 0);
+
+        writeHistogram(writer, "queue_wait_seconds",
+                "Time from the arrival of a request until it is popped", metrics.getQueueWait());
+        writeHistogram(writer, "processing_seconds",
+                "Time from popping a request until its response arrives", metrics.getProcessing());
+        writeHistogram(writer, "delivery_seconds",
+                "Time to write a response to the client", metrics.getDelivery());
+        writeHistogram(writer, "request_duration_seconds",
+                "Time from the arrival of a request until its response has been written",
+                metrics.getTotal());
+        writer.flush();
+    }
+
+    private static void writeCounter(PrintWriter writer, String name, String help, long value) {
+        writeMetric(writer, name, "counter", help, value);
+    }
+
+    private static void writeGauge(PrintWriter writer, String name, String help, long value) {
+        writeMetric(writer, name, "gauge", help, value);
+    }
+
+    private static void writeMetric(PrintWriter writer, String name, String type, String help,
+            long value) {
+        writeLine(writer, "# HELP " + PREFIX + name + " " + help);
+        writeLine(writer, "# TYPE " + PREFIX + name + " " + type);
+        writeLine(writer, PREFIX + name + " " + value);
+    }
+
+    private static void writeHistogram(PrintWriter writer, String name, String help,
+            LatencyHistogram histogram) {
+        writeLine(writer, "# HELP " + PREFIX + name + " " + help);
+        writeLine(writer, "# TYPE " + PREFIX + name + " histogram");
+        double[] bounds = LatencyHistogram.getBucketBounds();
+        long[] counts = histogram.getCumulativeCounts();
+        for (int i = 0; i < bounds.length; i++) {
+            writeLine(writer, PREFIX + name + "_bucket{le=\"" + bounds[i] + "\"} " + counts[i]);
+        }
+        long count = counts[counts.length - 1];
+        writeLine(writer, PREFIX + name + "_bucket{le=\"+Inf\"} " + count);
+        writeLine(writer, PREFIX + name + "_sum " + histogram.getSumSeconds());
+        writeLine(writer, PREFIX + name + "_count " + count);
+    }
+
+    private static void writeLine(PrintWriter writer, String line) {
+        writer.write(line);
+        writer.write('\n');
+    }
+
+    // The default queue has an empty label.
+    private static String queueLabel(RequestQueue queue) {
+        return queue.getName() == null ? "" : escapeLabelValue(queue.getName());
+    }
+
+    // Escapes backslashes, double quotes and line feeds in a label value.
+    private static String escapeLabelValue(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    @Override
+    public String getServletInfo() {
+        return "Exposes metrics in the Prometheus text format";
+    }
+
+}
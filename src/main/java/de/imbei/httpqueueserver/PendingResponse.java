@@ -0,0 +1,349 @@
+package de.imbei.httpqueueserver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Completion handle for a relayed request that waits for its response.
+ * The handle is registered when the request is queued and completed exactly once,
+ * either with the response from the polling module or with a timeout response.
+ * Clients with identical requests can be attached as followers. They get the same
+ * response without queueing their own requests.
+ * If popped requests are leased, the handle keeps the request during the lease, 
+ * so that it can be queued again if the polling module does not answer in time.
+ */
+public class PendingResponse {
+
+    private final int requestId;
+    private final long requestTime;
+    // For the latency metrics (see System.nanoTime())
+    private final long startNanos = System.nanoTime();
+    private volatile long popNanos;
+    private volatile boolean popped = false;
+    private volatile RequestTrace trace;
+    // The queue that contains the request until it is popped
+    private final RequestQueue queue;
+    // Only set if the client is waiting asynchronously
+    private final AsyncContext asyncContext;
+    // Only set if the client is waiting synchronously
+    private volatile HttpServletResponse servletResponse;
+    private final CompletableFuture<ResponseData> response = new CompletableFuture<>();
+    // Set if the response is streamed to the client by the waiting thread
+    private volatile ResponseStream.Client streamClient;
+    // Set if the response is to be stored in the response cache
+    private volatile String cacheKey;
+    // The expired cache entry that is revalidated with this request
+    private volatile ResponseCache.Entry staleCacheEntry;
+    // Set if identical requests can join this request
+    private volatile String coalescingKey;
+    // Set if this request waits for the response to an identical request
+    private volatile PendingResponse leader;
+    
+    // Clients with identical requests that wait for the same response
+    private final List<PendingResponse> followers = new ArrayList<>();
+    // If true, no more followers can be added
+    private boolean followersClosed = false;
+    // If true, the client of this request has gone, but followers still wait
+    private volatile boolean clientGone = false;
+    private final Lock followersLock = new ReentrantLock();
+    
+    // Answers the request with a timeout response if it is not completed in time
+    private volatile DeadlineScheduler.Timeout expiry;
+    
+    // The popped request while it is leased to a polling module
+    private RequestData leasedRequest;
+    private DeadlineScheduler.Timeout leaseExpiry;
+    // Distinguishes the expiries of successive leases and extensions
+    private int leaseGeneration = 0;
+    // If true, the request has been answered and cannot be leased any more
+    private boolean leaseClosed = false;
+    private final Lock leaseLock = new ReentrantLock();
+
+    public PendingResponse(int requestId, long requestTime, RequestQueue queue, 
+            AsyncContext asyncContext) {
+        this.requestId = requestId;
+        this.requestTime = requestTime;
+        this.queue = queue;
+        this.asyncContext = asyncContext;
+    }
+
+    public int getRequestId() {
+        return requestId;
+    }
+
+    public long getRequestTime() {
+        return requestTime;
+    }
+
+    public long getStartNanos() {
+        return startNanos;
+    }
+
+    public void setPopped(long popNanos) {
+        this.popNanos = popNanos;
+        this.popped = true;
+    }
+
+    // Time since the request has been popped, or -1 if it has not been popped
+    public long getProcessingNanos() {
+        return popped ? System.nanoTime() - popNanos : -1;
+    }
+
+    public void setTrace(RequestTrace trace) {
+        this.trace = trace;
+    }
+
+    public RequestTrace getTrace() {
+        return trace;
+    }
+
+    public RequestQueue getQueue() {
+        return queue;
+    }
+
+    public AsyncContext getAsyncContext() {
+        return asyncContext;
+    }
+
+    public void setResponse(HttpServletResponse servletResponse) {
+        this.servletResponse = servletResponse;
+    }
+
+    // Returns the response to the client or null if there is no client,
+    // e.g., for requests that have been restored from the request log.
+    public HttpServletResponse getResponse() {
+        if (asyncContext != null) {
+            return (HttpServletResponse) asyncContext.getResponse();
+        }
+        return servletResponse;
+    }
+
+    public void setCacheKey(String cacheKey, ResponseCache.Entry staleCacheEntry) {
+        this.cacheKey = cacheKey;
+        this.staleCacheEntry = staleCacheEntry;
+    }
+
+    public String getCacheKey() {
+        return cacheKey;
+    }
+
+    public ResponseCache.Entry getStaleCacheEntry() {
+        return staleCacheEntry;
+    }
+
+    public void setCoalescingKey(String coalescingKey) {
+        this.coalescingKey = coalescingKey;
+    }
+
+    public String getCoalescingKey() {
+        return coalescingKey;
+    }
+
+    public void setLeader(PendingResponse leader) {
+        this.leader = leader;
+    }
+
+    public PendingResponse getLeader() {
+        return leader;
+    }
+
+    // Adds a follower. The preparation of the follower runs before it can 
+    // receive the response. Returns false if the response has already been delivered.
+    public boolean addFollower(PendingResponse follower, Runnable preparation) {
+        followersLock.lock();
+        try {
+            if (followersClosed) {
+                return false;
+            }
+            preparation.run();
+            followers.add(follower);
+            return true;
+        } finally {
+            followersLock.unlock();
+        }
+    }
+
+    // Returns false if the follower has already been removed, 
+    // e.g., because the response has been delivered to it.
+    public boolean removeFollower(PendingResponse follower) {
+        followersLock.lock();
+        try {
+            return followers.remove(follower);
+        } finally {
+            followersLock.unlock();
+        }
+    }
+
+    // Removes and returns all followers. No more followers can be added afterwards.
+    public List<PendingResponse> closeFollowers() {
+        followersLock.lock();
+        try {
+            followersClosed = true;
+            List<PendingResponse> closedFollowers = new ArrayList<>(followers);
+            followers.clear();
+            return closedFollowers;
+        } finally {
+            followersLock.unlock();
+        }
+    }
+
+    // Called when the client of this request has gone.
+    // Returns true if there are followers that still wait for the response.
+    // Otherwise, no more followers can be added.
+    public boolean detachClient() {
+        followersLock.lock();
+        try {
+            if (followers.isEmpty()) {
+                followersClosed = true;
+                return false;
+            }
+            clientGone = true;
+            return true;
+        } finally {
+            followersLock.unlock();
+        }
+    }
+
+    public boolean isClientGone() {
+        return clientGone;
+    }
+
+    public void setExpiry(DeadlineScheduler.Timeout expiry) {
+        this.expiry = expiry;
+    }
+
+    public void cancelExpiry() {
+        DeadlineScheduler.Timeout timeout = expiry;
+        if (timeout != null) {
+            timeout.cancel();
+        }
+    }
+
+    // Leases the popped request. The expiry of the lease is scheduled 
+    // for the generation that is passed to the function.
+    // Returns false if the request has already been answered.
+    public boolean startLease(RequestData requestData, 
+            IntFunction<DeadlineScheduler.Timeout> scheduleExpiry) {
+        leaseLock.lock();
+        try {
+            if (leaseClosed) {
+                return false;
+            }
+            leasedRequest = requestData;
+            leaseExpiry = scheduleExpiry.apply(++leaseGeneration);
+            return true;
+        } finally {
+            leaseLock.unlock();
+        }
+    }
+
+    // Replaces the expiry of the lease. Returns false if the request is not leased.
+    public boolean extendLease(IntFunction<DeadlineScheduler.Timeout> scheduleExpiry) {
+        leaseLock.lock();
+        try {
+            if (leasedRequest == null) {
+                return false;
+            }
+            leaseExpiry.cancel();
+            leaseExpiry = scheduleExpiry.apply(++leaseGeneration);
+            return true;
+        } finally {
+            leaseLock.unlock();
+        }
+    }
+
+    // Ends the lease if it has not been extended or ended since the expiry 
+    // of the given generation has been scheduled. The leased request is 
+    // passed to the consumer while no one else can access the lease.
+    public void expireLease(int generation, Consumer<RequestData> requeue) {
+        leaseLock.lock();
+        try {
+            if (leasedRequest == null || generation != leaseGeneration) {
+                return;
+            }
+            RequestData requestData = leasedRequest;
+            leasedRequest = null;
+            leaseExpiry = null;
+            requeue.accept(requestData);
+        } finally {
+            leaseLock.unlock();
+        }
+    }
+
+    // Ends the lease because the request has been answered or has expired.
+    // Returns the leased request, which has to be released, or null.
+    public RequestData closeLease() {
+        leaseLock.lock();
+        try {
+            leaseClosed = true;
+            return endLeaseLocked();
+        } finally {
+            leaseLock.unlock();
+        }
+    }
+
+    // Ends the lease because the request is queued again, so that it can be leased 
+    // again when it is popped the next time. Returns the leased request, which has 
+    // to be released, or null if the request is not leased any more.
+    public RequestData cancelLease() {
+        leaseLock.lock();
+        try {
+            return endLeaseLocked();
+        } finally {
+            leaseLock.unlock();
+        }
+    }
+
+    private RequestData endLeaseLocked() {
+        if (leaseExpiry != null) {
+            leaseExpiry.cancel();
+            leaseExpiry = null;
+        }
+        RequestData requestData = leasedRequest;
+        leasedRequest = null;
+        return requestData;
+    }
+
+    // Returns false if the handle has already been completed before.
+    public boolean complete(ResponseData responseData) {
+        return response.complete(responseData);
+    }
+
+    // Hands a streamed response over to the thread that waits for it, which writes 
+    // the stream to the client. Returns false if the thread does not wait any more.
+    public boolean handOverStream(ResponseStream.Client streamClient) {
+        this.streamClient = streamClient;
+        return response.complete(null);
+    }
+
+    public ResponseStream.Client getStreamClient() {
+        return streamClient;
+    }
+
+    // Blocks until the handle is completed and returns the response.
+    // Returns null if the response is streamed (see getStreamClient()).
+    public ResponseData await() throws InterruptedException {
+        try {
+            return response.get();
+        } catch (ExecutionException ex) {
+            // The handle is never completed exceptionally.
+            throw new IllegalStateException(ex);
+        } catch (InterruptedException ex) {
+            // No one will write a stream that is handed over from now on. 
+            // If it has been handed over already, it is detached from the client.
+            if (!response.cancel(false) && streamClient != null) {
+                streamClient.abandon();
+            }
+            throw ex;
+        }
+    }
+
+}
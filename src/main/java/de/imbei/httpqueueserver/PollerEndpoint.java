@@ -0,0 +1,158 @@
+package de.imbei.httpqueueserver;
+
+import com.google.gson.stream.JsonReader;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.websocket.CloseReason;
+import javax.websocket.OnClose;
+import javax.websocket.OnError;
+import javax.websocket.OnMessage;
+import javax.websocket.OnOpen;
+import javax.websocket.Session;
+import javax.websocket.server.ServerEndpoint;
+
+/**
+ * Persistent channel to the polling module as alternative to /pop-request.
+ * The polling module opens a WebSocket connection to /poller, optionally with
+ * the query parameter "queue" to select a named queue.
+ * The server pushes each request as soon as it has been queued, as a binary
+ * message that contains one request frame (see {@link BinaryFrames}).
+ * Requests are only pushed while the polling module has credits.
+ * The polling module grants credits via text messages like {"credit": 5}.
+ * Each pushed request uses up one credit, which limits the number of requests
+ * that the polling module has to process at the same time.
+ * The responses can be sent back via binary messages that contain one or more
+ * response frames, or via /response as usual.
+ * The requests of each connection are pushed by a thread of a shared pool, which
+ * limits the number of connections. If a request cannot be pushed, the connection 
+ * is closed, so that the polling module reconnects.
+ */
+@ServerEndpoint("/poller")
+public class PollerEndpoint {
+
+    private static final Logger LOGGER = Logger.getLogger(PollerEndpoint.class.getName());
+
+    // Time in seconds after which the dispatcher checks whether the session is still open
+    private static final int WAITING_TIME = 30;
+
+    private final RequestManager requestManager = RequestManager.getInstance();
+
+    // Number of requests that may be pushed to the polling module
+    private final Semaphore credits = new Semaphore(0);
+    // Written in onOpen and read in onClose, which may run on different threads
+    private volatile Future<?> dispatcher;
+
+    @OnOpen
+    public void onOpen(Session session) throws IOException {
+        List<String> queueName = session.getRequestParameterMap().get("queue");
+        RequestQueue queue = requestManager.getQueue(queueName == null ? null : queueName.get(0));
+        if (queue == null) {
+            session.close(new CloseReason(CloseReason.CloseCodes.CANNOT_ACCEPT, "Unknown queue"));
+            return;
+        }
+        dispatcher = requestManager.startPollerDispatcher(() -> dispatch(session, queue));
+        if (dispatcher == null) {
+            session.close(new CloseReason(CloseReason.CloseCodes.TRY_AGAIN_LATER, 
+                    "Too many polling modules"));
+        } else if (!session.isOpen()) {
+            // The session has been closed before the dispatcher could be cancelled.
+            dispatcher.cancel(true);
+        }
+    }
+
+    // Pushes the requests to the polling module as long as it has credits.
+    private void dispatch(Session session, RequestQueue queue) {
+        try {
+            while (session.isOpen()) {
+                credits.acquire();
+                RequestData requestData = null;
+                while (requestData == null && session.isOpen()) {
+                    requestData = requestManager.popRequest(queue, WAITING_TIME, 
+                            "websocket:" + session.getId());
+                }
+                if (requestData == null) {
+                    return;
+                }
+                boolean pushed = false;
+                try (DataOutputStream out = new DataOutputStream(
+                        session.getBasicRemote().getSendStream())) {
+                    requestData.writeBinary(out);
+                    pushed = true;
+                } catch (IOException ex) {
+                    LOGGER.log(Level.WARNING, "Request " + requestData.getRequestId()
+                            + " could not be pushed to the polling module", ex);
+                    // Nothing is pushed over this connection any more.
+                    closeSession(session, "Could not push request");
+                    return;
+                } finally {
+                    if (pushed) {
+                        requestData.release();
+                    } else {
+                        // Another polling module can fetch the request.
+                        requestManager.requeueRequest(requestData);
+                    }
+                }
+            }
+        } catch (InterruptedException ex) {
+            // The session has been closed.
+        }
+    }
+
+    private static void closeSession(Session session, String reason) {
+        try {
+            session.close(new CloseReason(CloseReason.CloseCodes.UNEXPECTED_CONDITION, reason));
+        } catch (IOException ex) {
+            LOGGER.log(Level.FINE, "Could not close the channel to the polling module", ex);
+        }
+    }
+
+    // Grants credits to the polling module.
+    @OnMessage
+    public void onControlMessage(String message) throws IOException {
+        JsonReader reader = new JsonReader(new StringReader(message));
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.nextName().equals("credit")) {
+                int credit = reader.nextInt();
+                if (credit > 0) {
+                    credits.release(credit);
+                }
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    @OnMessage
+    public void onResponses(InputStream message) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(message));
+        ResponseData responseData;
+        while ((responseData = ResponseData.readBinary(in)) != null) {
+            requestManager.registerResponse(responseData);
+        }
+    }
+
+    @OnError
+    public void onError(Session session, Throwable throwable) {
+        LOGGER.log(Level.WARNING, "Error in the channel to the polling module", throwable);
+    }
+
+    @OnClose
+    public void onClose(Session session) {
+        Future<?> task = dispatcher;
+        if (task != null) {
+            task.cancel(true);
+        }
+    }
+
+}
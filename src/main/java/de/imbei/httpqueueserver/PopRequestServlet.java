@@ -1,11 +1,15 @@
 package de.imbei.httpqueueserver;
 
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.Writer;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.util.Collections;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -14,6 +18,19 @@ import java.util.logging.Logger;
  * A POST to /pop-request will return the relay request, packaged as JSON.
  * The query parameter "w" specifies the time, that the request is delayed if 
  * there is no request in the queue.
+ * If the query parameter "max" is given, up to "max" requests are returned 
+ * at once as a JSON array. In this case, the optional query parameter "linger" 
+ * specifies the time in milliseconds that the server waits for more requests 
+ * to fill the batch after the first request has arrived.
+ * If the query parameter "bodyEncoding" has the value "base64", the bodies 
+ * of the requests are Base64 encoded. Otherwise, they are decoded as UTF-8 text.
+ * If the "Accept" header contains the media type of the binary protocol 
+ * (see {@link BinaryFrames}), the requests are returned as binary frames 
+ * instead of JSON.
+ * The field "deadline" of a request contains the time (epoch milliseconds)
+ * after which no one waits for its response any more.
+ * The query parameter "queue" selects the named queue that is polled.
+ * Without it, the default queue is polled.
  */
 @WebServlet(name = "PopRequestServlet", urlPatterns = {"/pop-request"})
 public class PopRequestServlet extends HttpServlet {
@@ -24,24 +41,89 @@ public class PopRequestServlet extends HttpServlet {
     protected void doPost(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {
 
-        response.setContentType("text/html");
-        String waitingTimeParam = request.getParameter("w");
-        int waitingTime;
-        if (waitingTimeParam == null) {
-            waitingTime = 30;
-        } else{
-            waitingTime = Integer.parseInt(waitingTimeParam);
+        RequestQueue queue = requestManger.getQueue(request.getParameter("queue"));
+        if (queue == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "Unknown queue");
+            return;
         }
+        int waitingTime = getIntParameter(request, "w", 30);
+        boolean base64 = "base64".equals(request.getParameter("bodyEncoding"));
+        // Identifies the polling module in the traces of the requests
+        String poller = request.getRemoteAddr() + ":" + request.getRemotePort();
         
         try {
-            RequestData requestData = requestManger.popRequest(waitingTime);
-            if (requestData != null) {
-                response.getWriter().print(requestData.toString());
+            if (BinaryFrames.accepts(request.getHeader("Accept"))) {
+                int maxRequests = Math.max(1, getIntParameter(request, "max", 1));
+                int lingerMillis = getIntParameter(request, "linger", 0);
+                List<RequestData> requests = requestManger.popRequests(queue, waitingTime, 
+                        maxRequests, lingerMillis, poller);
+                response.setContentType(BinaryFrames.MEDIA_TYPE);
+                writeFrames(requests, new DataOutputStream(response.getOutputStream()));
+                return;
+            }
+            
+            response.setContentType("text/html");
+            response.setCharacterEncoding("UTF-8");
+            if (request.getParameter("max") == null) {
+                RequestData requestData = requestManger.popRequest(queue, waitingTime, poller);
+                if (requestData != null) {
+                    writeRequests(Collections.singletonList(requestData), response.getWriter(), 
+                            base64, false);
+                }
+            } else {
+                int maxRequests = Math.max(1, getIntParameter(request, "max", 1));
+                int lingerMillis = getIntParameter(request, "linger", 0);
+                List<RequestData> requests = requestManger.popRequests(queue, waitingTime, 
+                        maxRequests, lingerMillis, poller);
+                writeRequests(requests, response.getWriter(), base64, true);
             }
         } catch (InterruptedException ex) {
             Logger.getLogger(PopRequestServlet.class.getName()).log(Level.SEVERE, null, ex);
         }
     }
+    
+    // Writes the requests as JSON and releases their bodies afterwards.
+    private static void writeRequests(List<RequestData> requests, Writer writer, 
+            boolean base64, boolean asArray) throws IOException {
+        try {
+            if (asArray) {
+                writer.write("[");
+            }
+            for (int i = 0; i < requests.size(); i++) {
+                if (i > 0) {
+                    writer.write(",");
+                }
+                requests.get(i).writeJson(writer, base64);
+            }
+            if (asArray) {
+                writer.write("]");
+            }
+        } finally {
+            requests.forEach(RequestData::release);
+        }
+    }
+    
+    // Writes the requests as binary frames and releases their bodies afterwards.
+    private static void writeFrames(List<RequestData> requests, DataOutputStream out) 
+            throws IOException {
+        try {
+            for (RequestData requestData : requests) {
+                requestData.writeBinary(out);
+            }
+            out.flush();
+        } finally {
+            requests.forEach(RequestData::release);
+        }
+    }
+    
+    private static int getIntParameter(HttpServletRequest request, String name, int defaultValue) {
+        String value = request.getParameter(name);
+        if (value == null) {
+            return defaultValue;
+        } else {
+            return Integer.parseInt(value);
+        }
+    }
 
     /**
      * Returns a short description of the servlet.
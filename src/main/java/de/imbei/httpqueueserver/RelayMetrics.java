@@ -0,0 +1,121 @@
+package de.imbei.httpqueueserver;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms for the phases of relaying a request:
+ * waiting in the queue until a polling module pops it, processing by the
+ * polling module and the target server until the response arrives, and
+ * writing the response to the client.
+ * The metrics are exposed via /metrics (see {@link MetricsServlet}).
+ */
+public class RelayMetrics {
+
+    private final LongAdder relayedRequests = new LongAdder();
+    private final LongAdder poppedRequests = new LongAdder();
+    private final LongAdder registeredResponses = new LongAdder();
+    private final LongAdder discardedResponses = new LongAdder();
+    private final LongAdder timedOutRequests = new LongAdder();
+    private final LongAdder deliveredResponses = new LongAdder();
+    private final LongAdder failedDeliveries = new LongAdder();
+    private final LongAdder requestBodyBytes = new LongAdder();
+    private final LongAdder responseBodyBytes = new LongAdder();
+
+    // From the arrival of the request until it is popped
+    private final LatencyHistogram queueWait = new LatencyHistogram();
+    // From popping the request until the response arrives
+    private final LatencyHistogram processing = new LatencyHistogram();
+    // Writing the response to the client
+    private final LatencyHistogram delivery = new LatencyHistogram();
+    // From the arrival of the request until the response has been written
+    private final LatencyHistogram total = new LatencyHistogram();
+
+    public void requestRelayed(RequestData requestData) {
+        relayedRequests.increment();
+        requestBodyBytes.add(requestData.getBody().getSize());
+    }
+
+    public void requestPopped(long queueWaitNanos) {
+        poppedRequests.increment();
+        queueWait.observe(queueWaitNanos);
+    }
+
+    public void responseRegistered(long processingNanos) {
+        registeredResponses.increment();
+        if (processingNanos >= 0) {
+            processing.observe(processingNanos);
+        }
+    }
+
+    public void responseDiscarded() {
+        discardedResponses.increment();
+    }
+
+    public void requestTimedOut() {
+        timedOutRequests.increment();
+    }
+
+    public void responseDelivered(long bodyBytes, long deliveryNanos, long totalNanos) {
+        deliveredResponses.increment();
+        responseBodyBytes.add(bodyBytes);
+        delivery.observe(deliveryNanos);
+        total.observe(totalNanos);
+    }
+
+    public void deliveryFailed() {
+        failedDeliveries.increment();
+    }
+
+    public long getRelayedRequests() {
+        return relayedRequests.sum();
+    }
+
+    public long getPoppedRequests() {
+        return poppedRequests.sum();
+    }
+
+    public long getRegisteredResponses() {
+        return registeredResponses.sum();
+    }
+
+    public long getDiscardedResponses() {
+        return discardedResponses.sum();
+    }
+
+    public long getTimedOutRequests() {
+        return timedOutRequests.sum();
+    }
+
+    public long getDeliveredResponses() {
+        return deliveredResponses.sum();
+    }
+
+    public long getFailedDeliveries() {
+        return failedDeliveries.sum();
+    }
+
+    public long getRequestBodyBytes() {
+        return requestBodyBytes.sum();
+    }
+
+    public long getResponseBodyBytes() {
+        return responseBodyBytes.sum();
+    }
+
+    public LatencyHistogram getQueueWait() {
+        return queueWait;
+    }
+
+    public LatencyHistogram getProcessing() {
+        return processing;
+    }
+
+    public LatencyHistogram getDelivery() {
+        return delivery;
+    }
+
+    public LatencyHistogram getTotal() {
+        return total;
+    }
+
+}
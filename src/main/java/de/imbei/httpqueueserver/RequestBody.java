@@ -0,0 +1,195 @@
+package de.imbei.httpqueueserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The raw bytes of the body of a relayed request.
+ * Small bodies are kept in memory. Bodies that are larger than
+ * the memory threshold are stored in a temporary file until they are released.
+ * If there is a {@link BodyArena}, the bodies in memory are stored
+ * in its direct buffers instead of the heap.
+ */
+public class RequestBody {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    public static final RequestBody EMPTY = new RequestBody(new byte[0], null, 0);
+
+    private final byte[] data; // null if the body is stored in a file or in the arena
+    private final Path file;
+    private final ByteBuffer buffer; // buffer of the arena
+    private final BodyArena arena;
+    private final long size;
+    // Number of holders of the body. The file is deleted or the buffer 
+    // is returned to the arena when all have released it.
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    private RequestBody(byte[] data, Path file, long size) {
+        this.data = data;
+        this.file = file;
+        this.buffer = null;
+        this.arena = null;
+        this.size = size;
+    }
+
+    private RequestBody(ByteBuffer buffer, BodyArena arena) {
+        this.data = null;
+        this.file = null;
+        this.buffer = buffer;
+        this.arena = arena;
+        this.size = buffer.limit();
+    }
+
+    // Reads the whole stream. If there are more than memoryThreshold bytes,
+    // the body is written to a temporary file.
+    public static RequestBody read(InputStream in, long memoryThreshold) throws IOException {
+        return read(in, memoryThreshold, null);
+    }
+
+    // Reads the whole stream like read(in, memoryThreshold). Bodies that 
+    // are kept in memory are moved to the arena if it has space left.
+    public static RequestBody read(InputStream in, long memoryThreshold, BodyArena arena) 
+            throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        byte[] chunk = new byte[BUFFER_SIZE];
+        int n;
+        while ((n = in.read(chunk)) != -1) {
+            if (buffer.size() + n > memoryThreshold) {
+                return spillToFile(buffer, chunk, n, in);
+            }
+            buffer.write(chunk, 0, n);
+        }
+        if (buffer.size() == 0) {
+            return EMPTY;
+        }
+        if (arena != null) {
+            ByteBuffer arenaBuffer = arena.allocate(buffer.size());
+            if (arenaBuffer != null) {
+                // Copies the internal array of the stream without another copy on the heap.
+                buffer.writeTo(new OutputStream() {
+                    @Override
+                    public void write(int b) {
+                        arenaBuffer.put((byte) b);
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) {
+                        arenaBuffer.put(b, off, len);
+                    }
+                });
+                arenaBuffer.flip();
+                return new RequestBody(arenaBuffer, arena);
+            }
+        }
+        return new RequestBody(buffer.toByteArray(), null, buffer.size());
+    }
+
+    private static RequestBody spillToFile(ByteArrayOutputStream buffer, byte[] chunk, int n,
+            InputStream in) throws IOException {
+        Path file = Files.createTempFile("httpqueueserver-", ".body");
+        try (OutputStream out = Files.newOutputStream(file)) {
+            buffer.writeTo(out);
+            out.write(chunk, 0, n);
+            in.transferTo(out);
+        } catch (IOException ex) {
+            Files.deleteIfExists(file);
+            throw ex;
+        }
+        return new RequestBody(null, file, Files.size(file));
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public InputStream openStream() throws IOException {
+        if (data != null) {
+            return new ByteArrayInputStream(data);
+        } else if (buffer != null) {
+            if (references.get() <= 0) {
+                throw new IOException("The body has already been released");
+            }
+            // Each reader gets its own position.
+            return new ByteBufferInputStream(buffer.duplicate());
+        } else {
+            return Files.newInputStream(file);
+        }
+    }
+
+    // Adds a holder of the body, which has to release it, too.
+    public void retain() {
+        references.incrementAndGet();
+    }
+
+    // Deletes the temporary file or returns the buffer to the arena, if there 
+    // is one, when the last holder has released the body. 
+    // The body cannot be read any more afterwards.
+    public void release() {
+        if (file == null && buffer == null) {
+            return;
+        }
+        if (references.decrementAndGet() != 0) {
+            return;
+        }
+        if (buffer != null) {
+            arena.release(buffer);
+        } else {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException ex) {
+                Logger.getLogger(RequestBody.class.getName()).log(Level.WARNING,
+                        "Could not delete temporary file " + file, ex);
+            }
+        }
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+}
@@ -0,0 +1,81 @@
+package de.imbei.httpqueueserver;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Finds identical GET and HEAD requests that are relayed at the same time,
+ * so that only one of them is queued and its response is sent to all clients.
+ * Requests are identical if they are routed to the same queue and have the same
+ * method, URI and values of the identity headers. Only requests whose URI
+ * (as passed to the polling module) matches the configured pattern are coalesced.
+ * Conditional and range requests are never coalesced.
+ */
+public class RequestCoalescing {
+
+    // The response to a request with one of these headers may be 304 or 206,
+    // which must not be sent to clients that have not asked for it.
+    private static final List<String> CONDITIONAL_HEADERS = List.of(
+            "If-None-Match", "If-Modified-Since", "If-Match", "If-Unmodified-Since",
+            "Range", "If-Range");
+
+    private final Pattern uriPattern;
+    private final List<String> identityHeaders;
+
+    // The requests in flight by their keys
+    private final Map<String, PendingResponse> inFlight = new ConcurrentHashMap<>();
+
+    public RequestCoalescing(Pattern uriPattern, List<String> identityHeaders) {
+        this.uriPattern = uriPattern;
+        this.identityHeaders = identityHeaders;
+    }
+
+    // Returns the key for the request or null if the request must not be coalesced.
+    public String getKey(HttpServletRequest request, RequestQueue queue) {
+        String method = request.getMethod();
+        if (!"GET".equals(method) && !"HEAD".equals(method)) {
+            return null;
+        }
+        String uri = RequestData.extractUri(request, queue.getName());
+        if (!uriPattern.matcher(uri).matches()) {
+            return null;
+        }
+        for (String conditionalHeader : CONDITIONAL_HEADERS) {
+            if (request.getHeader(conditionalHeader) != null) {
+                return null;
+            }
+        }
+        StringBuilder key = new StringBuilder();
+        if (queue.getName() != null) {
+            key.append(queue.getName());
+        }
+        key.append('\n').append(method).append('\n').append(uri);
+        for (String identityHeader : identityHeaders) {
+            key.append('\n');
+            String value = request.getHeader(identityHeader);
+            if (value != null) {
+                key.append(value);
+            }
+        }
+        return key.toString();
+    }
+
+    // Makes the request available for identical requests.
+    // Returns the request in flight if there already is one with the same key.
+    public PendingResponse putIfAbsent(String key, PendingResponse pendingResponse) {
+        return inFlight.putIfAbsent(key, pendingResponse);
+    }
+
+    public void remove(String key, PendingResponse pendingResponse) {
+        inFlight.remove(key, pendingResponse);
+    }
+
+    // Number of requests in flight that identical requests can join
+    public int size() {
+        return inFlight.size();
+    }
+
+}
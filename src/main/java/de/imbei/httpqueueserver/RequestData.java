@@ -2,16 +2,26 @@ package de.imbei.httpqueueserver;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-import java.util.stream.Collectors;
 import javax.servlet.http.HttpServletRequest;
 
 /**
@@ -32,19 +42,32 @@ public class RequestData {
     private final String method;
     private final String uri;
     private final Map<String, List<String>> headers;
-    private final String body;
+    private final RequestBody body;
+    // Time (epoch milliseconds) after which no one waits for the response any more.
+    // 0 if unknown.
+    private final long deadline;
+    
+    private static final Gson GSON = new GsonBuilder().disableHtmlEscaping().create();
+    private static final int BUFFER_SIZE = 3 * 1024; // multiple of 3 for Base64 encoding
 
     /**
      * Extracts "abc/xyz?v=2" from a request to
      * "https://queue.example.com/relay/abc/xyz?v=2".
+     * If the request is routed to a named queue, the name of the queue is
+     * removed as well, i.e., "abc/xyz?v=2" is also extracted from a request to
+     * "https://queue.example.com/relay/queuename/abc/xyz?v=2".
      *
      * @param request the original request
+     * @param queueName the name of the queue or null for the default queue
      * @return the extracted part of the URI that is to be passed to the polling
      * module
      */
-    private static String extractUri(HttpServletRequest request) {
+    static String extractUri(HttpServletRequest request, String queueName) {
         int contextPathChars = request.getContextPath().length()
                 + request.getServletPath().length() + 1;
+        if (queueName != null) {
+            contextPathChars += queueName.length() + 1;
+        }
         String uri = request.getRequestURI();
         if (uri.length() < contextPathChars) {
             uri = ""; // request to /relay without / at the end
@@ -81,36 +104,249 @@ public class RequestData {
         return headers;
     }
 
-    public static String extractBody(HttpServletRequest request) {
-        String requestBody = "";
-        if ("POST".equals(request.getMethod()) || "PUT".equals(request.getMethod())) {
-            try {
-                requestBody = request.getReader().lines()
-                        .collect(Collectors.joining(System.lineSeparator()));
-            } catch (IOException ex) {
-                Logger.getLogger(RequestData.class.getName()).log(Level.SEVERE, null, ex);
-            }
-        }
-        return requestBody;
-    }
-
-    public RequestData(HttpServletRequest request, int requestId) {
+    // Reads the raw bytes of the request body, regardless of the method.
+    // Bodies larger than memoryThreshold bytes are stored in a temporary file,
+    // smaller ones in the arena if there is one.
+    public RequestData(HttpServletRequest request, int requestId, String queueName,
+            long deadline, long memoryThreshold, BodyArena arena) throws IOException {
         this.requestId = requestId;
+        this.deadline = deadline;
 
         this.method = request.getMethod();
-        this.uri = extractUri(request);
+        this.uri = extractUri(request, queueName);
         this.headers = extractHeaders(request);
-        this.body = extractBody(request);
+        this.body = RequestBody.read(request.getInputStream(), memoryThreshold, arena);
+    }
+
+    private RequestData(int requestId, String method, String uri, 
+            Map<String, List<String>> headers, long deadline, RequestBody body) {
+        this.requestId = requestId;
+        this.deadline = deadline;
+        this.method = method;
+        this.uri = uri;
+        this.headers = headers;
+        this.body = body;
     }
 
     public int getRequestId() {
         return requestId;
     }
+    
+    public long getDeadline() {
+        return deadline;
+    }
+    
+    public String getMethod() {
+        return method;
+    }
+    
+    public String getUri() {
+        return uri;
+    }
+    
+    // Returns the first value of the header or null if the header is not set.
+    // The name of the header is not case-sensitive.
+    public String getHeader(String name) {
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            if (header.getKey().equalsIgnoreCase(name) && !header.getValue().isEmpty()) {
+                return header.getValue().get(0);
+            }
+        }
+        return null;
+    }
+    
+    // Replaces all values of the header. The name of the header is not case-sensitive.
+    public void setHeader(String name, String value) {
+        headers.keySet().removeIf(headerName -> headerName.equalsIgnoreCase(name));
+        headers.put(name, new ArrayList<>(List.of(value)));
+    }
+    
+    public RequestBody getBody() {
+        return body;
+    }
+    
+    // Adds a holder of the request, which has to release it, too.
+    public void retain() {
+        body.retain();
+    }
+    
+    // Deletes the temporary data of the body.
+    // Must be called when the request is not needed any more.
+    public void release() {
+        body.release();
+    }
+
+    /**
+     * Writes the request as JSON object to the writer. The body is streamed 
+     * into the JSON without reading it into memory as a whole.
+     * 
+     * @param writer the target
+     * @param base64 if true, the body is Base64 encoded, which preserves 
+     * binary content. Otherwise, the body is decoded as UTF-8 text.
+     * @throws IOException if the body cannot be read or the writer fails
+     */
+    public void writeJson(Writer writer, boolean base64) throws IOException {
+        writer.write("{\"requestId\":");
+        writer.write(Integer.toString(requestId));
+        writer.write(",\"method\":");
+        writer.write(GSON.toJson(method));
+        writer.write(",\"uri\":");
+        writer.write(GSON.toJson(uri));
+        writer.write(",\"headers\":");
+        writer.write(GSON.toJson(headers));
+        if (deadline != 0) {
+            writer.write(",\"deadline\":");
+            writer.write(Long.toString(deadline));
+        }
+        if (base64) {
+            writer.write(",\"bodyEncoding\":\"base64\"");
+        }
+        writer.write(",\"body\":\"");
+        try (InputStream in = body.openStream()) {
+            if (base64) {
+                writeBase64(in, writer);
+            } else {
+                writeEscapedText(new InputStreamReader(in, StandardCharsets.UTF_8), writer);
+            }
+        }
+        writer.write("\"}");
+    }
+    
+    private static void writeBase64(InputStream in, Writer writer) throws IOException {
+        Base64.Encoder encoder = Base64.getEncoder();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        byte[] encoded = new byte[BUFFER_SIZE / 3 * 4];
+        char[] chars = new char[encoded.length];
+        int n;
+        // readNBytes fills the buffer completely except at the end of the stream.
+        // This way, padding only occurs in the last chunk.
+        while ((n = in.readNBytes(buffer, 0, buffer.length)) > 0) {
+            int length = encoder.encode(n == buffer.length ? buffer : Arrays.copyOf(buffer, n), encoded);
+            // The Base64 alphabet is ASCII.
+            for (int i = 0; i < length; i++) {
+                chars[i] = (char) encoded[i];
+            }
+            writer.write(chars, 0, length);
+        }
+    }
+    
+    // Writes the content of a JSON string, escaped in the same way as Gson does it
+    private static void writeEscapedText(Reader reader, Writer writer) throws IOException {
+        char[] buffer = new char[BUFFER_SIZE];
+        int n;
+        while ((n = reader.read(buffer)) != -1) {
+            int start = 0;
+            for (int i = 0; i < n; i++) {
+                char c = buffer[i];
+                String replacement;
+                if (c == '"') {
+                    replacement = "\\\"";
+                } else if (c == '\\') {
+                    replacement = "\\\\";
+                } else if (c == '\n') {
+                    replacement = "\\n";
+                } else if (c == '\r') {
+                    replacement = "\\r";
+                } else if (c == '\t') {
+                    replacement = "\\t";
+                } else if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+                    replacement = String.format("\\u%04x", (int) c);
+                } else {
+                    continue;
+                }
+                writer.write(buffer, start, i - start);
+                writer.write(replacement);
+                start = i + 1;
+            }
+            writer.write(buffer, start, n - start);
+        }
+    }
+
+    /**
+     * Writes the request as frame of the binary protocol (see {@link BinaryFrames}).
+     * 
+     * @param out the target
+     * @throws IOException if the body cannot be read or the stream fails
+     */
+    public void writeBinary(DataOutputStream out) throws IOException {
+        BinaryFrames.writeHeaderBlock(out, binaryHeaderBlock());
+        out.writeLong(body.getSize());
+        try (InputStream in = body.openStream()) {
+            BinaryFrames.copyBody(in, out, body.getSize());
+        }
+    }
+    
+    // Number of bytes written by writeBinary
+    public long getBinarySize() throws IOException {
+        return 4 + binaryHeaderBlock().size() + 8 + body.getSize();
+    }
+    
+    private ByteArrayOutputStream binaryHeaderBlock() throws IOException {
+        ByteArrayOutputStream headerBlock = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(headerBlock);
+        header.writeInt(requestId);
+        BinaryFrames.writeString(header, method);
+        BinaryFrames.writeString(header, uri);
+        BinaryFrames.writeHeaders(header, headers);
+        header.writeLong(deadline);
+        return headerBlock;
+    }
+    
+    /**
+     * Reads a request frame of the binary protocol (see {@link BinaryFrames}).
+     * 
+     * @param in the source
+     * @param memoryThreshold bodies that are larger are stored in a temporary file
+     * @return the request or null if there are no more frames
+     * @throws IOException if the frame cannot be read
+     */
+    public static RequestData readBinary(DataInputStream in, long memoryThreshold) 
+            throws IOException {
+        return readBinary(in, memoryThreshold, null);
+    }
+    
+    /**
+     * Reads a request frame of the binary protocol (see {@link BinaryFrames}).
+     * 
+     * @param in the source
+     * @param memoryThreshold bodies that are larger are stored in a temporary file
+     * @param arena stores the bodies that are kept in memory, may be null
+     * @return the request or null if there are no more frames
+     * @throws IOException if the frame cannot be read
+     */
+    public static RequestData readBinary(DataInputStream in, long memoryThreshold, 
+            BodyArena arena) throws IOException {
+        DataInputStream header = BinaryFrames.readHeaderBlock(in);
+        if (header == null) {
+            return null;
+        }
+        int requestId = header.readInt();
+        String method = BinaryFrames.readString(header);
+        String uri = BinaryFrames.readString(header);
+        Map<String, List<String>> headers = BinaryFrames.readHeaders(header);
+        // The deadline has been added to the header block later.
+        long deadline = header.available() >= 8 ? header.readLong() : 0;
+        
+        long bodyLength = in.readLong();
+        RequestBody body = RequestBody.read(BinaryFrames.limit(in, bodyLength), 
+                memoryThreshold, arena);
+        if (body.getSize() != bodyLength) {
+            body.release();
+            throw new EOFException("Body ended after " + body.getSize() 
+                    + " of " + bodyLength + " bytes");
+        }
+        return new RequestData(requestId, method, uri, headers, deadline, body);
+    }
 
     @Override
     public String toString() {
-        Gson gson = new GsonBuilder().disableHtmlEscaping().create();
-        return gson.toJson(this);
+        StringWriter writer = new StringWriter();
+        try {
+            writeJson(writer, false);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        return writer.toString();
     }
 
 }
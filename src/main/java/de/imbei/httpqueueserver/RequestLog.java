@@ -0,0 +1,633 @@
+package de.imbei.httpqueueserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log that makes queued requests survive a restart of the server.
+ * The events "enqueue", "pop", "requeue" and "complete" are appended to memory-mapped
+ * segment files. When the server starts, the log is replayed and the requests
+ * that have been neither popped nor completed are queued again.
+ * If leases are used, popped requests that have not been completed are
+ * queued again as well, because their lease cannot be tracked across the restart.
+ * A segment file is deleted as soon as all requests enqueued in it
+ * and in all older segments have been completed.
+ *
+ * Each record consists of
+ * <ul>
+ * <li>the length of the payload (int),</li>
+ * <li>the type of the event (byte),</li>
+ * <li>the request ID (int),</li>
+ * <li>the payload,</li>
+ * <li>the CRC32 of type, request ID and payload (int).</li>
+ * </ul>
+ * The payload of an "enqueue" event is the time of the request (long),
+ * the name of the queue (string, empty for the default queue) and
+ * the request as binary frame (see {@link BinaryFrames}).
+ * The other events have no payload.
+ * The payload is copied after the space for the record has been reserved,
+ * so that concurrent events do not wait for large bodies. Until the payload
+ * is complete, the type of the record is "reserved". Such records are
+ * skipped when the log is replayed.
+ */
+public class RequestLog {
+
+    /**
+     * Determines when the written data is forced to the storage device.
+     */
+    public enum FsyncPolicy {
+        // Each event is forced before the call returns.
+        // Concurrent events are forced together (group commit).
+        ALWAYS,
+        // The data is forced periodically in the background.
+        INTERVAL,
+        // Forcing the data is left to the operating system.
+        NEVER
+    }
+
+    /**
+     * A request that has been restored from the log.
+     */
+    public static class LoggedRequest {
+        private final RequestData requestData;
+        private final String queueName;
+        private final long requestTime;
+
+        private LoggedRequest(RequestData requestData, String queueName, long requestTime) {
+            this.requestData = requestData;
+            this.queueName = queueName;
+            this.requestTime = requestTime;
+        }
+
+        public RequestData getRequestData() {
+            return requestData;
+        }
+
+        // null for the default queue
+        public String getQueueName() {
+            return queueName;
+        }
+
+        public long getRequestTime() {
+            return requestTime;
+        }
+    }
+
+    private interface PayloadWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private static final class Segment {
+        final long index;
+        final Path file;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        // requests enqueued in this segment that have not been completed yet
+        int liveRequests;
+        // records whose payload is being written
+        int pendingAppends;
+
+        Segment(long index, Path file, FileChannel channel, MappedByteBuffer buffer) {
+            this.index = index;
+            this.file = file;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+    }
+
+    private static final byte END = 0;
+    private static final byte ENQUEUE = 1;
+    private static final byte POP = 2;
+    private static final byte COMPLETE = 3;
+    // A leased request has been queued again because its lease has ended.
+    private static final byte REQUEUE = 4;
+    // The payload of the record has not been written completely.
+    private static final byte RESERVED = 5;
+
+    private static final int RECORD_OVERHEAD = 4 + 1 + 4 + 4;
+    private static final Pattern SEGMENT_NAME = Pattern.compile("segment-(\\d+)\\.log");
+
+    private final Path directory;
+    private final long segmentSize;
+    private final FsyncPolicy fsyncPolicy;
+    private final long fsyncIntervalMillis;
+
+    // All fields below are guarded by this lock.
+    private final Lock lock = new ReentrantLock();
+    // let the flusher wait for new data
+    private final Condition dataAppended = lock.newCondition();
+    // let the appending threads wait until their data has been forced
+    private final Condition dataForced = lock.newCondition();
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private Segment activeSegment;
+    // segments with data that has not been forced yet
+    private final Set<Segment> dirtySegments = new LinkedHashSet<>();
+    // segment of the "enqueue" event for each request that has not been completed
+    private final Map<Integer, Segment> liveRequests = new HashMap<>();
+    private long appendedBytes = 0;
+    private long forcedBytes = 0;
+    private boolean closed = false;
+    private int maxRequestId = 0;
+
+    private Thread flusher;
+
+    public RequestLog(Path directory, long segmentSize, FsyncPolicy fsyncPolicy,
+            long fsyncIntervalMillis) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.fsyncPolicy = fsyncPolicy;
+        this.fsyncIntervalMillis = fsyncIntervalMillis;
+    }
+
+    /**
+     * Reads the existing segments. Must be called once before {@link #start()}.
+     *
+     * @param memoryThreshold request bodies that are larger are stored in temporary files
+     * @return the requests that have been neither popped nor completed, in the order of arrival
+     * @throws IOException if the segments cannot be read
+     */
+    public List<LoggedRequest> replay(long memoryThreshold) throws IOException {
+        return replay(memoryThreshold, false);
+    }
+
+    /**
+     * Reads the existing segments. Must be called once before {@link #start()}.
+     *
+     * @param memoryThreshold request bodies that are larger are stored in temporary files
+     * @param requeuePopped if true, popped requests that have not been completed are
+     * returned as well
+     * @return the requests to be queued again, in the order of arrival
+     * @throws IOException if the segments cannot be read
+     */
+    public List<LoggedRequest> replay(long memoryThreshold, boolean requeuePopped) 
+            throws IOException {
+        return replay(memoryThreshold, requeuePopped, null);
+    }
+
+    /**
+     * Reads the existing segments. Must be called once before {@link #start()}.
+     *
+     * @param memoryThreshold request bodies that are larger are stored in temporary files
+     * @param requeuePopped if true, popped requests that have not been completed are
+     * returned as well
+     * @param arena stores the request bodies that are kept in memory, may be null
+     * @return the requests to be queued again, in the order of arrival
+     * @throws IOException if the segments cannot be read
+     */
+    public List<LoggedRequest> replay(long memoryThreshold, boolean requeuePopped, 
+            BodyArena arena) throws IOException {
+        lock.lock();
+        try {
+            return replayLocked(memoryThreshold, requeuePopped, arena);
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    private List<LoggedRequest> replayLocked(long memoryThreshold, boolean requeuePopped, 
+            BodyArena arena) throws IOException {
+        Files.createDirectories(directory);
+        List<Path> files;
+        try (Stream<Path> list = Files.list(directory)) {
+            files = list.filter(file -> SEGMENT_NAME.matcher(file.getFileName().toString()).matches())
+                    .sorted((a, b) -> Long.compare(segmentIndex(a), segmentIndex(b)))
+                    .collect(Collectors.toList());
+        }
+
+        Map<Integer, LoggedRequest> queued = new LinkedHashMap<>();
+        // popped requests that have been neither completed nor queued again
+        Map<Integer, LoggedRequest> popped = new LinkedHashMap<>();
+        Map<Integer, Segment> enqueuedIn = new HashMap<>();
+        for (Path file : files) {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            Segment segment = new Segment(segmentIndex(file), file, channel, buffer);
+            segments.add(segment);
+            replaySegment(segment, memoryThreshold, arena, queued, popped, enqueuedIn);
+        }
+
+        if (requeuePopped) {
+            queued.putAll(popped);
+        } else {
+            // Popped requests are not queued again, because the polling module
+            // may already have sent them to the target server.
+            for (LoggedRequest loggedRequest : popped.values()) {
+                loggedRequest.getRequestData().release();
+            }
+        }
+
+        for (LoggedRequest loggedRequest : queued.values()) {
+            int requestId = loggedRequest.getRequestData().getRequestId();
+            Segment segment = enqueuedIn.get(requestId);
+            segment.liveRequests++;
+            liveRequests.put(requestId, segment);
+        }
+        deleteCompletedSegments();
+        return new ArrayList<>(queued.values());
+    }
+
+    private void replaySegment(Segment segment, long memoryThreshold, BodyArena arena,
+            Map<Integer, LoggedRequest> queued, Map<Integer, LoggedRequest> popped,
+            Map<Integer, Segment> enqueuedIn)
+            throws IOException {
+        ByteBuffer buffer = segment.buffer;
+        while (buffer.remaining() >= RECORD_OVERHEAD) {
+            int payloadLength = buffer.getInt();
+            byte type = buffer.get();
+            if (type == END || payloadLength < 0
+                    || payloadLength > buffer.remaining() - 8) {
+                break;
+            }
+            if (type == RESERVED) {
+                // The server has stopped while the payload was written. 
+                // Records after it may be complete.
+                buffer.position(buffer.position() + 4 + payloadLength + 4);
+                continue;
+            }
+            int requestId = buffer.getInt();
+            byte[] payload = new byte[payloadLength];
+            buffer.get(payload);
+            CRC32 crc = newChecksum(type, requestId);
+            crc.update(payload);
+            if ((int) crc.getValue() != buffer.getInt()) {
+                // The record has not been written completely before the server stopped.
+                Logger.getLogger(RequestLog.class.getName()).log(Level.WARNING,
+                        "Incomplete record in {0}, ignoring the rest of the segment", segment.file);
+                break;
+            }
+
+            maxRequestId = Math.max(maxRequestId, requestId);
+            if (type == ENQUEUE) {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+                long requestTime = in.readLong();
+                String queueName = BinaryFrames.readString(in);
+                RequestData requestData = RequestData.readBinary(in, memoryThreshold, arena);
+                queued.put(requestId, new LoggedRequest(requestData, 
+                        queueName.isEmpty() ? null : queueName, requestTime));
+                enqueuedIn.put(requestId, segment);
+            } else if (type == POP) {
+                LoggedRequest removed = queued.remove(requestId);
+                if (removed != null) {
+                    popped.put(requestId, removed);
+                }
+            } else if (type == REQUEUE) {
+                LoggedRequest requeued = popped.remove(requestId);
+                if (requeued != null) {
+                    queued.put(requestId, requeued);
+                }
+            } else {
+                LoggedRequest removed = queued.remove(requestId);
+                if (removed == null) {
+                    removed = popped.remove(requestId);
+                }
+                if (removed != null) {
+                    removed.getRequestData().release();
+                }
+            }
+        }
+    }
+
+    // Highest request ID found while replaying the log
+    public int getMaxRequestId() {
+        lock.lock();
+        try {
+            return maxRequestId;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void start() throws IOException {
+        lock.lock();
+        try {
+            activeSegment = openSegment(segments.isEmpty() ? 0 : segments.getLast().index + 1,
+                    segmentSize);
+        } finally {
+            lock.unlock();
+        }
+        if (fsyncPolicy != FsyncPolicy.NEVER) {
+            flusher = new Thread(this::flushLoop, "request-log-flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+    }
+
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            dataAppended.signalAll();
+            dataForced.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (flusher != null) {
+            try {
+                flusher.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        lock.lock();
+        try {
+            for (Segment segment : segments) {
+                if (!segment.buffer.isReadOnly()) {
+                    segment.buffer.force();
+                }
+                closeChannel(segment);
+            }
+            segments.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void logEnqueue(RequestData requestData, String queueName, long requestTime) 
+            throws IOException {
+        // The default queue is logged with an empty name.
+        byte[] queueNameBytes = queueName == null 
+                ? new byte[0] : queueName.getBytes(StandardCharsets.UTF_8);
+        long payloadLength = 8 + 4 + queueNameBytes.length + requestData.getBinarySize();
+        if (payloadLength > Integer.MAX_VALUE - RECORD_OVERHEAD) {
+            throw new IOException("Request too large for the request log: "
+                    + payloadLength + " bytes");
+        }
+        append(ENQUEUE, requestData.getRequestId(), (int) payloadLength, out -> {
+            out.writeLong(requestTime);
+            out.writeInt(queueNameBytes.length);
+            out.write(queueNameBytes);
+            requestData.writeBinary(out);
+        });
+    }
+
+    public void logPop(int requestId) throws IOException {
+        append(POP, requestId, 0, null);
+    }
+
+    public void logRequeue(int requestId) throws IOException {
+        append(REQUEUE, requestId, 0, null);
+    }
+
+    public void logComplete(int requestId) throws IOException {
+        append(COMPLETE, requestId, 0, null);
+    }
+
+    // Appends a record. Records with a payload are written in two steps, so that
+    // large bodies are not copied while holding the lock: the space is reserved
+    // under the lock, then the payload is copied, and finally the record is 
+    // marked as complete by writing its type.
+    private void append(byte type, int requestId, int payloadLength,
+            PayloadWriter payloadWriter) throws IOException {
+        Segment segment;
+        int start;
+        lock.lock();
+        try {
+            segment = reserve(RECORD_OVERHEAD + payloadLength);
+            MappedByteBuffer buffer = segment.buffer;
+            start = buffer.position();
+            buffer.putInt(payloadLength);
+            if (payloadWriter == null) {
+                buffer.put(type);
+                buffer.putInt(requestId);
+                buffer.putInt((int) newChecksum(type, requestId).getValue());
+                commitLocked(segment, type, requestId, RECORD_OVERHEAD);
+                return;
+            }
+            buffer.put(RESERVED);
+            buffer.putInt(requestId);
+            buffer.position(start + RECORD_OVERHEAD + payloadLength);
+            segment.pendingAppends++;
+        } finally {
+            lock.unlock();
+        }
+
+        boolean written = false;
+        try {
+            writePayload(segment, start, type, requestId, payloadLength, payloadWriter);
+            written = true;
+        } finally {
+            lock.lock();
+            try {
+                segment.pendingAppends--;
+                if (written) {
+                    commitLocked(segment, type, requestId, RECORD_OVERHEAD + payloadLength);
+                } else {
+                    // The record stays marked as reserved and is skipped by the replay.
+                    deleteCompletedSegments();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // Reserves space for a record in the active segment. 
+    // A new segment is started if the record does not fit.
+    private Segment reserve(int recordLength) throws IOException {
+        if (closed) {
+            throw new IOException("The request log has been closed");
+        }
+        if (activeSegment.buffer.remaining() < recordLength) {
+            activeSegment = openSegment(activeSegment.index + 1,
+                    Math.max(segmentSize, recordLength));
+            deleteCompletedSegments();
+        }
+        return activeSegment;
+    }
+
+    // Copies the payload into the reserved space without holding the lock.
+    // Each writer uses its own view of the segment, which is limited to its record.
+    private static void writePayload(Segment segment, int start, byte type, int requestId, 
+            int payloadLength, PayloadWriter payloadWriter) throws IOException {
+        ByteBuffer record = segment.buffer.duplicate();
+        int payloadStart = start + RECORD_OVERHEAD - 4;
+        record.limit(payloadStart + payloadLength);
+        record.position(payloadStart);
+        CRC32 crc = newChecksum(type, requestId);
+        DataOutputStream out = new DataOutputStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+                record.put((byte) b);
+                crc.update(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                record.put(b, off, len);
+                crc.update(b, off, len);
+            }
+        });
+        payloadWriter.write(out);
+        if (record.hasRemaining()) {
+            throw new IllegalStateException("Wrong payload length in request log");
+        }
+        record.limit(payloadStart + payloadLength + 4);
+        record.putInt((int) crc.getValue());
+        // The type completes the record.
+        record.put(start + 4, type);
+    }
+
+    private static CRC32 newChecksum(byte type, int requestId) {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(ByteBuffer.allocate(4).putInt(0, requestId));
+        return crc;
+    }
+
+    // Accounts for a complete record and waits until it has been forced
+    // if this is required by the fsync policy.
+    private void commitLocked(Segment segment, byte type, int requestId, int recordLength) 
+            throws IOException {
+        if (type == ENQUEUE) {
+            segment.liveRequests++;
+            liveRequests.put(requestId, segment);
+        } else if (type == COMPLETE) {
+            Segment enqueuedIn = liveRequests.remove(requestId);
+            if (enqueuedIn != null) {
+                enqueuedIn.liveRequests--;
+            }
+        }
+        deleteCompletedSegments();
+
+        appendedBytes += recordLength;
+        long position = appendedBytes;
+        dirtySegments.add(segment);
+        if (fsyncPolicy != FsyncPolicy.NEVER) {
+            dataAppended.signal();
+        }
+        if (fsyncPolicy == FsyncPolicy.ALWAYS) {
+            while (forcedBytes < position && !closed) {
+                try {
+                    dataForced.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for the request log", ex);
+                }
+            }
+        }
+    }
+
+    // Forces the written data to the storage device. Events that are appended
+    // while the data is forced are collected and forced together in the next round.
+    private void flushLoop() {
+        while (true) {
+            List<Segment> toForce;
+            long position;
+            lock.lock();
+            try {
+                while (!closed && appendedBytes == forcedBytes) {
+                    dataAppended.await();
+                }
+                if (closed) {
+                    return;
+                }
+                position = appendedBytes;
+                toForce = new ArrayList<>(dirtySegments);
+                dirtySegments.clear();
+            } catch (InterruptedException ex) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+            for (Segment segment : toForce) {
+                try {
+                    segment.buffer.force();
+                } catch (UncheckedIOException ex) {
+                    Logger.getLogger(RequestLog.class.getName()).log(Level.SEVERE,
+                            "Could not force request log segment " + segment.file, ex);
+                }
+            }
+            lock.lock();
+            try {
+                forcedBytes = position;
+                dataForced.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            if (fsyncPolicy == FsyncPolicy.INTERVAL) {
+                try {
+                    Thread.sleep(fsyncIntervalMillis);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private Segment openSegment(long index, long size) throws IOException {
+        Path file = directory.resolve("segment-" + index + ".log");
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        Segment segment = new Segment(index, file, channel, buffer);
+        segments.add(segment);
+        return segment;
+    }
+
+    // Deletes the oldest segments as long as all of their requests have been completed.
+    // Newer segments are kept even if they are completed, because they may contain
+    // the "complete" events for requests of older segments.
+    private void deleteCompletedSegments() {
+        while (!segments.isEmpty()) {
+            Segment oldest = segments.getFirst();
+            if (oldest == activeSegment || oldest.liveRequests > 0 || oldest.pendingAppends > 0) {
+                return;
+            }
+            segments.removeFirst();
+            dirtySegments.remove(oldest);
+            closeChannel(oldest);
+            try {
+                Files.deleteIfExists(oldest.file);
+            } catch (IOException ex) {
+                Logger.getLogger(RequestLog.class.getName()).log(Level.WARNING,
+                        "Could not delete request log segment " + oldest.file, ex);
+            }
+        }
+    }
+
+    private static void closeChannel(Segment segment) {
+        try {
+            segment.channel.close();
+        } catch (IOException ex) {
+            Logger.getLogger(RequestLog.class.getName()).log(Level.WARNING,
+                    "Could not close request log segment " + segment.file, ex);
+        }
+    }
+
+    private static long segmentIndex(Path file) {
+        Matcher matcher = SEGMENT_NAME.matcher(file.getFileName().toString());
+        matcher.matches();
+        return Long.parseLong(matcher.group(1));
+    }
+
+}
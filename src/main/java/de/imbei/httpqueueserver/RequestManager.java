@@ -1,57 +1,100 @@
 package de.imbei.httpqueueserver;
 
-import java.util.LinkedList;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
-import java.util.Base64;
-import java.util.Collections;
-import java.util.HashMap;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
 
 /**
- * Manages the request queue and the incoming responses.
+ * Manages the request queues and the incoming responses.
+ * Besides the default queue, there may be named queues. Requests to 
+ * /relay/queuename/... are routed to the queue with the name "queuename".
+ * This way, each target system can be served by its own polling modules and 
+ * a slow target system does not delay the requests to other target systems.
+ * The request IDs are unique across all queues.
  */
 public class RequestManager {
        
-    private int requestCounter = 0;
-    private final LinkedList<RequestData> requestQueue = new LinkedList<>();
-    private final Map<Integer, ResponseData> responses = Collections.synchronizedMap(new HashMap<>());
-      
-    // make requestCounter thread safe
-    private final Lock requestCounterLock = new ReentrantLock();
-    
-    // make requestQueue thread safe
-    private final Lock requestQueueLock = new ReentrantLock();
-    // let the polling module wait for this condition:
-    private final Condition requestArrived = requestQueueLock.newCondition();
-    
-    // make it possible to wait for a response and be notified upon arrival
-    private final Map<Integer, Lock> responseLocks = Collections.synchronizedMap(new HashMap<>());
-    private final Map<Integer, Condition> responseConditions = Collections.synchronizedMap(new HashMap<>());
-    
-    // The time of each request is stored until the response has been delivered.
-    // This way, a clean-up task can remove requests that have timed out,
-    // as well as corresponding responses that may never be fetched
-    // because the request has timed out already.
-    private final Map<Integer, Long> requestTimes = new HashMap<>();
-    
-    // make requestTimes thread safe
-    private final Lock requestTimesLock = new ReentrantLock();
-    
-    private ScheduledExecutorService cleanUpTaskExecutor;
+    private final AtomicInteger requestCounter = new AtomicInteger(0);
+    // Decides in which order the requests of each queue are popped
+    private SchedulingPolicy schedulingPolicy = SchedulingPolicy.fifo();
+    private volatile RequestQueue defaultQueue = new RequestQueue(null, null, schedulingPolicy);
+    private final Map<String, RequestQueue> namedQueues = new ConcurrentHashMap<>();
+    
+    // Each relayed request registers a completion handle until its response 
+    // has been delivered. Registering, completing and removing a handle 
+    // is a single operation on the concurrent map.
+    private final Map<Integer, PendingResponse> pendingResponses = new ConcurrentHashMap<>();
+    
+    // The expiry of each request is scheduled when its handle is registered.
+    // This way, requests that have timed out are removed from the queue
+    // and the waiting clients get a timeout response.
+    private final DeadlineScheduler expiryScheduler = new DeadlineScheduler();
     private long timeoutMillis = 172800000; // 2 Days
+    // Clients can set a shorter timeout (in seconds) for their request via this header.
+    private String deadlineHeader = "X-Request-Timeout";
+    private long expiryCheckIntervalMillis = 1000;
+    
+    // Request bodies that are larger are stored in temporary files.
+    private long requestBodyMemoryThreshold = 1024 * 1024; // 1 MiB
+    // If set, the bodies in memory are stored in direct buffers.
+    private BodyArena bodyArena;
+    
+    // If set, the requests are written to a log that is replayed after a restart.
+    private RequestLog requestLog;
+    
+    // If set, identical GET requests that are relayed at the same time share one exchange.
+    private RequestCoalescing coalescing;
+    
+    // If set, cacheable responses to GET requests are kept in memory.
+    private ResponseCache responseCache;
+    
+    // Responses that are streamed to the clients while the polling module uploads them
+    private final Map<Integer, ResponseStream> responseStreams = new ConcurrentHashMap<>();
+    // Streams that do not receive data for this time are aborted.
+    private long streamIdleTimeoutMillis = 60000;
+    // Clients that do not make room for the next chunk within this time are dropped.
+    private long streamWriteTimeoutMillis = 30000;
+    
+    // If greater than 0, popped requests are leased to the polling module for this time.
+    // Requests that have not been answered when their lease ends are queued again.
+    private long leaseMillis = 0;
+    private final LongAdder redeliveredRequests = new LongAdder();
+    
+    // Runs the dispatchers that push requests over the WebSocket connections 
+    // of polling modules, one thread per connection
+    private volatile ExecutorService pollerDispatchers;
+    
+    private final RelayMetrics metrics = new RelayMetrics();
+    // If set, the traces of completed requests are logged.
+    private volatile AccessLog accessLog;
+    
+    // Limits the number of queued requests and the bytes held for bodies
+    private AdmissionControl admissionControl = AdmissionControl.unlimited();
+    // Total size of the bodies of responses that have not been written to the clients yet
+    private final AtomicLong pendingResponseBytes = new AtomicLong();
     
     // This class follows the singleton pattern.
     private static volatile RequestManager instance;
@@ -70,82 +113,489 @@ public class RequestManager {
     }
 
     
-    private void queueRequest(HttpServletRequest request, int requestId) {
-        // Register the request time before adding it to the queue.
-        requestTimesLock.lock();
+    // Writes the request to the request log (if there is one).
+    // This must happen before the request is queued.
+    private void logEnqueue(RequestData requestData, RequestQueue queue, long requestTime) 
+            throws IOException {
+        if (requestLog != null) {
+            requestLog.logEnqueue(requestData, queue.getName(), requestTime);
+        }
+    }
+    
+    private void logPop(int requestId) {
+        if (requestLog != null) {
+            try {
+                requestLog.logPop(requestId);
+            } catch (IOException ex) {
+                Logger.getLogger(RequestManager.class.getName()).log(Level.SEVERE, 
+                        "Could not log pop of request " + requestId, ex);
+            }
+        }
+    }
+    
+    private void logRequeue(int requestId) {
+        if (requestLog != null) {
+            try {
+                requestLog.logRequeue(requestId);
+            } catch (IOException ex) {
+                Logger.getLogger(RequestManager.class.getName()).log(Level.SEVERE, 
+                        "Could not log requeueing of request " + requestId, ex);
+            }
+        }
+    }
+    
+    private void logComplete(int requestId) {
+        if (requestLog != null) {
+            try {
+                requestLog.logComplete(requestId);
+            } catch (IOException ex) {
+                Logger.getLogger(RequestManager.class.getName()).log(Level.SEVERE, 
+                        "Could not log completion of request " + requestId, ex);
+            }
+        }
+    }
+    
+    private void registerPendingResponse(PendingResponse pendingResponse, long deadline) {
+        pendingResponse.setExpiry(expiryScheduler.schedule(deadline, 
+                () -> expire(pendingResponse)));
+        pendingResponses.put(pendingResponse.getRequestId(), pendingResponse);
+    }
+    
+    // Removes the handle if it is still registered.
+    // Returns false if the handle has already been removed by someone else.
+    private boolean removePendingResponse(PendingResponse pendingResponse) {
+        if (pendingResponses.remove(pendingResponse.getRequestId(), pendingResponse)) {
+            pendingResponse.cancelExpiry();
+            endLease(pendingResponse);
+            logComplete(pendingResponse.getRequestId());
+            // There will be no response for clients with identical requests.
+            releaseFollowers(pendingResponse, 
+                    ResponseData.createTimeoutResponse(pendingResponse.getRequestId()));
+            return true;
+        }
+        return false;
+    }
+    
+    // Sends the response to the clients that wait for the same response 
+    // as the given request. Afterwards, identical requests cannot join it any more.
+    private void releaseFollowers(PendingResponse pendingResponse, ResponseData responseData) {
+        for (PendingResponse follower : detachFollowers(pendingResponse)) {
+            deliverResponse(follower, responseData);
+        }
+    }
+    
+    // Returns the clients with identical requests, which do not expire any more.
+    // Afterwards, identical requests cannot join the given request any more.
+    private List<PendingResponse> detachFollowers(PendingResponse pendingResponse) {
+        if (pendingResponse.getCoalescingKey() != null) {
+            coalescing.remove(pendingResponse.getCoalescingKey(), pendingResponse);
+        }
+        List<PendingResponse> followers = pendingResponse.closeFollowers();
+        for (PendingResponse follower : followers) {
+            follower.cancelExpiry();
+        }
+        return followers;
+    }
+    
+    // Makes the request the leader for identical requests that arrive before 
+    // its response, or attaches it as follower to an identical request in flight,
+    // so that it gets the same response. Returns true if the request has been 
+    // attached as follower and must not be queued.
+    private boolean joinInFlightRequest(String coalescingKey, PendingResponse pendingResponse, 
+            long deadline) {
+        if (coalescingKey == null) {
+            return false;
+        }
+        while (true) {
+            PendingResponse leader = coalescing.putIfAbsent(coalescingKey, pendingResponse);
+            if (leader == null) {
+                pendingResponse.setCoalescingKey(coalescingKey);
+                return false;
+            }
+            if (leader.addFollower(pendingResponse, 
+                    () -> prepareFollower(leader, pendingResponse, deadline))) {
+                return true;
+            }
+            // The response to the leader has just been delivered.
+            coalescing.remove(coalescingKey, leader);
+        }
+    }
+    
+    private void prepareFollower(PendingResponse leader, PendingResponse follower, long deadline) {
+        follower.setLeader(leader);
+        follower.getTrace().coalesced(leader.getRequestId());
+        AsyncContext asyncContext = follower.getAsyncContext();
+        if (asyncContext != null) {
+            asyncContext.addListener(new AsyncListener() {
+                @Override
+                public void onComplete(AsyncEvent event) {}
+
+                @Override
+                public void onTimeout(AsyncEvent event) {}
+
+                @Override
+                public void onError(AsyncEvent event) {
+                    if (leader.removeFollower(follower)) {
+                        follower.cancelExpiry();
+                        asyncContext.complete();
+                    }
+                }
+
+                @Override
+                public void onStartAsync(AsyncEvent event) {}
+            });
+        }
+        follower.setExpiry(expiryScheduler.schedule(deadline, () -> {
+            if (leader.removeFollower(follower)) {
+                metrics.requestTimedOut();
+                deliverResponse(follower, ResponseData.createTimeoutResponse(leader.getRequestId()));
+            }
+        }));
+    }
+    
+    private long getTimeoutMillis(RequestQueue queue) {
+        Long queueTimeoutMillis = queue.getTimeoutMillis();
+        return queueTimeoutMillis != null ? queueTimeoutMillis : timeoutMillis;
+    }
+    
+    // The request expires after the timeout of its queue, or earlier if
+    // the client has sent a shorter timeout in the deadline header.
+    private long getDeadline(HttpServletRequest request, RequestQueue queue, long requestTime) {
+        long timeout = getTimeoutMillis(queue);
+        String clientTimeout = request.getHeader(deadlineHeader);
+        if (clientTimeout != null) {
+            try {
+                double seconds = Double.parseDouble(clientTimeout.trim());
+                long clientTimeoutMillis = (long) (seconds * 1000);
+                if (seconds >= 0 && clientTimeoutMillis < timeout) {
+                    timeout = clientTimeoutMillis;
+                }
+            } catch (NumberFormatException ex) {
+                // use the timeout of the queue
+            }
+        }
+        return requestTime + timeout;
+    }
+    
+    private int newRequestId() {
+        // on overflow, start again at 0 to use only positive values
+        return requestCounter.updateAndGet(counter -> counter == Integer.MAX_VALUE ? 0 : counter + 1);
+    }
+    
+    
+    // Adds a named queue. Requests to /relay/name/... are routed to this queue.
+    // If timeoutMillis is null, the global request timeout is used.
+    public void addQueue(String name, Long timeoutMillis) {
+        namedQueues.put(name, new RequestQueue(name, timeoutMillis, schedulingPolicy));
+    }
+    
+    // Must be called before queues are added and before requests are queued.
+    public void setSchedulingPolicy(SchedulingPolicy schedulingPolicy) {
+        this.schedulingPolicy = schedulingPolicy;
+        defaultQueue = new RequestQueue(null, null, schedulingPolicy);
+    }
+    
+    // Returns the queue with the given name, the default queue if the name 
+    // is null, or null if there is no such queue.
+    public RequestQueue getQueue(String name) {
+        if (name == null) {
+            return defaultQueue;
+        }
+        return namedQueues.get(name);
+    }
+    
+    public List<RequestQueue> getQueues() {
+        List<RequestQueue> queues = new ArrayList<>();
+        queues.add(defaultQueue);
+        queues.addAll(namedQueues.values());
+        return queues;
+    }
+    
+    // Returns the queue for a request to /relay with the given path info.
+    // The first segment of the path selects a named queue. 
+    // If there is no queue with this name, the default queue is used.
+    public RequestQueue routeRequest(String pathInfo) {
+        if (pathInfo == null || namedQueues.isEmpty()) {
+            return defaultQueue;
+        }
+        int end = pathInfo.indexOf('/', 1);
+        String name = end < 0 ? pathInfo.substring(1) : pathInfo.substring(1, end);
+        return namedQueues.getOrDefault(name, defaultQueue);
+    }
+    
+    // Answers the request with a fresh response from the response cache.
+    // Returns false if there is none and the request has to be relayed.
+    public boolean respondFromCache(HttpServletRequest request, HttpServletResponse response, 
+            RequestQueue queue) throws IOException {
+        if (responseCache == null || !ResponseCache.acceptsCachedResponse(request)) {
+            return false;
+        }
+        String key = responseCache.getKey(request, queue);
+        if (key == null) {
+            return false;
+        }
+        ResponseCache.Entry entry = responseCache.get(key);
+        if (entry == null || !entry.isFresh(System.currentTimeMillis())) {
+            return false;
+        }
+        if (entry.matches(request.getHeader("If-None-Match"))) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            response.setHeader("ETag", entry.getEtag());
+            return true;
+        }
+        writeResponse(response, ResponseCache.createResponse(entry, 0));
+        return true;
+    }
+    
+    // Returns the expired cache entry that is to be revalidated with the request
+    // or null. For revalidation, "If-None-Match" is added to the request, 
+    // unless the client has sent a condition itself.
+    private ResponseCache.Entry prepareRevalidation(String cacheKey, 
+            HttpServletRequest request, RequestData requestData) {
+        if (cacheKey == null || request.getHeader("If-None-Match") != null 
+                || request.getHeader("If-Modified-Since") != null) {
+            return null;
+        }
+        ResponseCache.Entry staleEntry = responseCache.peek(cacheKey);
+        if (staleEntry == null || staleEntry.getEtag() == null) {
+            return null;
+        }
+        requestData.setHeader("If-None-Match", staleEntry.getEtag());
+        return staleEntry;
+    }
+    
+    public void relayRequest(HttpServletRequest request, HttpServletResponse response, 
+            RequestQueue queue) throws InterruptedException, IOException {
+        int requestId = newRequestId();
+        long requestTime = System.currentTimeMillis();
+        long deadline = getDeadline(request, queue, requestTime);
+        RequestData requestData = new RequestData(request, requestId, queue.getName(), 
+                deadline, requestBodyMemoryThreshold, bodyArena);
+        PendingResponse pendingResponse = new PendingResponse(requestId, requestTime, queue, null);
+        pendingResponse.setResponse(response);
+        pendingResponse.setTrace(new RequestTrace(requestId, queue.getName(), 
+                requestData.getMethod(), requestData.getUri(), requestTime));
+        
+        String coalescingKey = coalescing == null ? null : coalescing.getKey(request, queue);
+        if (joinInFlightRequest(coalescingKey, pendingResponse, deadline)) {
+            // An identical request is in flight. Wait for its response.
+            requestData.release();
+            ResponseData responseData;
+            try {
+                responseData = pendingResponse.await();
+            } finally {
+                if (pendingResponse.getLeader().removeFollower(pendingResponse)) {
+                    pendingResponse.cancelExpiry();
+                }
+            }
+            writeAwaitedResponse(response, pendingResponse, responseData);
+            return;
+        }
+        
+        String cacheKey = responseCache == null ? null : responseCache.getKey(request, queue);
+        pendingResponse.setCacheKey(cacheKey, prepareRevalidation(cacheKey, request, requestData));
         try {
-            requestTimes.put(requestId, System.currentTimeMillis());
-        } finally {
-            requestTimesLock.unlock();
+            logEnqueue(requestData, queue, requestTime);
+        } catch (IOException ex) {
+            requestData.release();
+            releaseFollowers(pendingResponse, ResponseData.createTimeoutResponse(requestId));
+            throw ex;
         }
         
-        requestQueueLock.lock();
+        // Register the handle before adding the request to the queue.
+        registerPendingResponse(pendingResponse, deadline);
+        
+        metrics.requestRelayed(requestData);
+        pendingResponse.getTrace().enqueued();
+        ResponseData responseData;
         try {
-            requestQueue.add(new RequestData(request, requestId));
-            requestArrived.signal();
+            queue.add(requestData);
+            responseData = pendingResponse.await();
         } finally {
-            requestQueueLock.unlock();
+            // The request does not have to be tracked any more.
+            // If the thread has been interrupted while waiting, 
+            // the request is not needed in the queue either.
+            if (removePendingResponse(pendingResponse)) {
+                queue.cancel(requestId);
+            }
         }
+        writeAwaitedResponse(response, pendingResponse, responseData);
     }
     
-    private int newRequestId() {
-        requestCounterLock.lock();
+    // Writes the response for which the calling thread has waited.
+    private void writeAwaitedResponse(HttpServletResponse response, 
+            PendingResponse pendingResponse, ResponseData responseData) 
+            throws IOException, InterruptedException {
+        if (responseData == null) {
+            // The response is streamed. It is written by this thread, so that 
+            // the response is not used any more when the thread returns.
+            pendingResponse.getStreamClient().writeTo(response);
+            return;
+        }
+        // The bytes are only counted here, so that they are not held forever 
+        // if the waiting thread has been interrupted after the completion.
+        pendingResponseBytes.addAndGet(responseData.getBody().length);
+        long writeStart = System.nanoTime();
         try {
-            requestCounter += 1;
-            if (requestCounter < 0) {
-                requestCounter = 0; // overflow, use only positive values
-            }
+            writeResponse(response, responseData);
+            recordDelivery(pendingResponse, responseData, writeStart, false);
+        } catch (IOException ex) {
+            recordDelivery(pendingResponse, responseData, writeStart, true);
+            throw ex;
         } finally {
-            requestCounterLock.unlock();
+            pendingResponseBytes.addAndGet(-responseData.getBody().length);
         }
-        return requestCounter;
     }
     
-    
-    public void relayRequest(HttpServletRequest request, HttpServletResponse response) throws InterruptedException, IOException {
+    // Relays the request without blocking the calling thread.
+    // The request is put into asynchronous mode and completed 
+    // when the response is registered or when the timeout is reached.
+    public void relayRequestAsync(HttpServletRequest request, RequestQueue queue) 
+            throws IOException {
         int requestId = newRequestId();
         
-        queueRequest(request, requestId);
+        // The request data (including the body) must be read before
+        // the request is put into asynchronous mode.
+        long requestTime = System.currentTimeMillis();
+        long deadline = getDeadline(request, queue, requestTime);
+        RequestData requestData = new RequestData(request, requestId, queue.getName(), 
+                deadline, requestBodyMemoryThreshold, bodyArena);
+        
+        AsyncContext asyncContext = request.startAsync();
+        // The timeout is handled by the expiry scheduler like for blocking requests.
+        asyncContext.setTimeout(0);
+        PendingResponse pendingResponse = new PendingResponse(requestId, 
+                requestTime, queue, asyncContext);
+        pendingResponse.setTrace(new RequestTrace(requestId, queue.getName(), 
+                requestData.getMethod(), requestData.getUri(), requestTime));
+        
+        String coalescingKey = coalescing == null ? null : coalescing.getKey(request, queue);
+        if (joinInFlightRequest(coalescingKey, pendingResponse, deadline)) {
+            // An identical request is in flight. Its response will be sent to this client, too.
+            requestData.release();
+            return;
+        }
+        
+        String cacheKey = responseCache == null ? null : responseCache.getKey(request, queue);
+        pendingResponse.setCacheKey(cacheKey, prepareRevalidation(cacheKey, request, requestData));
+        try {
+            logEnqueue(requestData, queue, requestTime);
+        } catch (IOException ex) {
+            requestData.release();
+            releaseFollowers(pendingResponse, ResponseData.createTimeoutResponse(requestId));
+            // The request is already in asynchronous mode, 
+            // so the exception would not reach the client.
+            Logger.getLogger(RequestManager.class.getName()).log(Level.SEVERE, 
+                    "Could not log request " + requestId, ex);
+            try {
+                ((HttpServletResponse) asyncContext.getResponse()).sendError(
+                        HttpServletResponse.SC_SERVICE_UNAVAILABLE, 
+                        "The request could not be written to the request log");
+            } finally {
+                asyncContext.complete();
+            }
+            return;
+        }
         
-        ResponseData responseData = waitForResponse(requestId);
+        asyncContext.addListener(new AsyncListener() {
+            @Override
+            public void onComplete(AsyncEvent event) {}
+
+            @Override
+            public void onTimeout(AsyncEvent event) {}
+
+            @Override
+            public void onError(AsyncEvent event) {
+                // The connection to the client is broken, e.g., the client
+                // has reset the stream. If there are no clients with identical
+                // requests, there is no one left to answer, so the request 
+                // is dropped before it is popped.
+                if (pendingResponse.detachClient()) {
+                    asyncContext.complete();
+                } else if (removePendingResponse(pendingResponse)) {
+                    queue.cancel(requestId);
+                    asyncContext.complete();
+                }
+            }
 
-        writeResponse(response, responseData);
+            @Override
+            public void onStartAsync(AsyncEvent event) {}
+        });
+        registerPendingResponse(pendingResponse, deadline);
+        
+        metrics.requestRelayed(requestData);
+        pendingResponse.getTrace().enqueued();
+        queue.add(requestData);
     }
     
-    private ResponseData waitForResponse(int requestId) throws InterruptedException {
-        ReentrantLock lock = new ReentrantLock();
-        responseLocks.put(requestId, lock);
-        lock.lock();
-        try {
-            Condition responseArrived = lock.newCondition();
-            responseConditions.put(requestId, responseArrived);
-            
-            while (responses.get(requestId) == null) {
-                responseArrived.await();
+    // Hands the response over to the client waiting for it and to the clients
+    // with identical requests.
+    private void completeResponse(PendingResponse pendingResponse, ResponseData responseData) {
+        releaseFollowers(pendingResponse, responseData);
+        if (!pendingResponse.isClientGone()) {
+            deliverResponse(pendingResponse, responseData);
+        }
+    }
+    
+    // Hands the response over to the client waiting for it.
+    private void deliverResponse(PendingResponse pendingResponse, ResponseData responseData) {
+        AsyncContext asyncContext = pendingResponse.getAsyncContext();
+        if (asyncContext == null && pendingResponse.getResponse() == null) {
+            // The request has been restored from the request log.
+            // No client waits for the response.
+            return;
+        }
+        if (asyncContext == null) {
+            // wake up the thread that waits for the response, 
+            // which counts the bytes while it writes them
+            pendingResponse.complete(responseData);
+            return;
+        }
+        
+        // The client is waiting asynchronously.
+        // Write the response on a container thread and complete the request.
+        // The bytes are held until the response has been written.
+        pendingResponseBytes.addAndGet(responseData.getBody().length);
+        asyncContext.start(() -> {
+            long writeStart = System.nanoTime();
+            try {
+                writeResponse((HttpServletResponse) asyncContext.getResponse(), responseData);
+                recordDelivery(pendingResponse, responseData, writeStart, false);
+            } catch (IOException ex) {
+                recordDelivery(pendingResponse, responseData, writeStart, true);
+                Logger.getLogger(RequestManager.class.getName()).log(Level.WARNING, 
+                        "Could not deliver response for request " 
+                                + pendingResponse.getRequestId(), ex);
+            } finally {
+                pendingResponseBytes.addAndGet(-responseData.getBody().length);
+                asyncContext.complete();
             }
-            
-            return responses.get(requestId);
-        } finally {           
-            lock.unlock();
-            
-            responses.remove(requestId);
-            responseLocks.remove(requestId);
-            responseConditions.remove(requestId);
-            
-            // After removing the response, the requestTimes object can
-            // also be removed, because the request does not have to be tracked 
-            // any more.
-            removeRequestTime(requestId);
-        }
-    }
-    
-    private void removeRequestTime(Integer requestId) {
-        requestTimesLock.lock();
-        try {
-            requestTimes.remove(requestId);
-        } finally {
-            requestTimesLock.unlock();
-        }        
+        });
+    }
+    
+    // Records the delivery of the response in the metrics and in the access log.
+    private void recordDelivery(PendingResponse pendingResponse, ResponseData responseData, 
+            long writeStart, boolean failed) {
+        recordDelivery(pendingResponse, responseData.getStatusCode(), 
+                responseData.getBody().length, writeStart, failed);
+    }
+    
+    // For streamed responses, the delivery starts with the status and the headers.
+    private void recordDelivery(PendingResponse pendingResponse, int statusCode, 
+            long bodyBytes, long writeStart, boolean failed) {
+        if (failed) {
+            metrics.deliveryFailed();
+        } else {
+            long now = System.nanoTime();
+            metrics.responseDelivered(bodyBytes, now - writeStart, 
+                    now - pendingResponse.getStartNanos());
+        }
+        RequestTrace trace = pendingResponse.getTrace();
+        trace.delivered(statusCode, failed);
+        AccessLog log = accessLog;
+        if (log != null) {
+            log.log(trace);
+        }
     }
     
     private void writeResponse(HttpServletResponse response, ResponseData responseData) throws IOException {      
@@ -159,147 +609,477 @@ public class RequestManager {
         }
         
         //set body
-        byte[] body = Base64.getDecoder().decode(responseData.getBody());
-        response.getOutputStream().write(body);
+        response.getOutputStream().write(responseData.getBody());
     }
     
     // Get new request. Wait until waitingTime is over or until a new request arrives
-    public RequestData popRequest(int waitingTime) throws InterruptedException {
-        requestQueueLock.lock();
-        try {
-            long timeStart = System.nanoTime();
-            while (requestQueue.isEmpty()) {
-                requestArrived.await(waitingTime, TimeUnit.SECONDS);
-                // There may be spurious wakeups.
-                // Check if the waiting time has actually passed.
-                long elapsedNanos = System.nanoTime() - timeStart;
-                if (elapsedNanos > waitingTime * 1000000000 ) {
-                    break;
-                }
+    // The poller identifies the polling module in the traces of the requests.
+    public RequestData popRequest(RequestQueue queue, int waitingTime, String poller) 
+            throws InterruptedException {
+        List<RequestData> requests = popRequests(queue, waitingTime, 1, 0, poller);
+        if (requests.isEmpty()) {
+            return null;
+        } else {
+            return requests.get(0);
+        }
+    }
+    
+    // Get up to maxRequests new requests. Wait until waitingTime (seconds) is over 
+    // or until a new request arrives. After the first request has arrived,
+    // wait up to lingerMillis for more requests to fill the batch.
+    public List<RequestData> popRequests(RequestQueue queue, int waitingTime, int maxRequests, 
+            long lingerMillis, String poller) throws InterruptedException {
+        List<RequestData> requests = queue.poll(maxRequests, 
+                TimeUnit.SECONDS.toNanos(waitingTime), TimeUnit.MILLISECONDS.toNanos(lingerMillis));
+        for (RequestData requestData : requests) {
+            logPop(requestData.getRequestId());
+            PendingResponse pendingResponse = pendingResponses.get(requestData.getRequestId());
+            if (pendingResponse == null) {
+                continue;
             }
-            if (requestQueue.isEmpty()) {
-                return null;
-            } else {
-                return requestQueue.removeFirst();
+            long popNanos = System.nanoTime();
+            pendingResponse.setPopped(popNanos);
+            metrics.requestPopped(popNanos - pendingResponse.getStartNanos());
+            pendingResponse.getTrace().popped(poller);
+            if (leaseMillis > 0) {
+                startLease(pendingResponse, requestData);
             }
-        } finally {
-            requestQueueLock.unlock();
         }
+        return requests;
     }
-
     
-    public void registerResponse(ResponseData responseData) {
-        int requestId = responseData.getRequestId();
-        Lock responseLock = responseLocks.get(requestId);
-            
-        if (responseLock != null) {
-            // If there is a responseLock object for this request,
-            // a thread is still waiting for the reponse.
-            // Register the response and wake up the thread that waits for it.
-        
-            responseLock.lock();
-            try {
-                responseConditions.get(requestId).signal();
-                responses.put(requestId, responseData);
-            } finally {
-                responseLock.unlock();
-            }
+    // Keeps the popped request, so that it can be queued again 
+    // if the polling module does not answer before the lease ends.
+    private void startLease(PendingResponse pendingResponse, RequestData requestData) {
+        requestData.retain();
+        if (!pendingResponse.startLease(requestData, 
+                generation -> scheduleLeaseExpiry(pendingResponse, generation))) {
+            requestData.release();
         }
-        // Otherwise, the request has already been cleaned up due to a timeout
-        // and no one is waiting for it. Do nothing and discard the response.
-    }
-    
-    
-    // Clean up requests, responses and corresponding objects 
-    // for timed out requests
-    private void cleanUp() {
-        List<Integer> expiredRequests = getExpiredRequests();
-        for (Integer requestId : expiredRequests) {
-            if (responses.get(requestId) != null) {
-                // If a response has been registered for the requestId
-                // but no thread has fetched it, clean up:
-                // * the response object, 
-                // * the corresponding lock + condition
-                // * and the registered request time.
-                // (There is no need to remove the request from the queue because 
-                // the response has been registered, which means the request must
-                // have been fetched/removed from the queue.)
-                responses.remove(requestId);
-                responseLocks.remove(requestId);
-                responseConditions.remove(requestId);
-                removeFromRequestTimes(requestId);
-            } else {
-                // If the timeout is due to the fact that the request has not been
-                // fetched from the queue, remove the request from the queue.
-                if (!removeRequestFromQueue(requestId)) {
-                    // If it's not in the queue, 
-                    // and there is no response object registered, 
-                    // we have a timeout of the request. However, it is possible
-                    // that the client is still waiting for the request.
-                    // To make the timeout visible to a client that may still be waiting,
-                    // register a timeout response.
-                    registerResponse(ResponseData.createTimeoutResponse(requestId));
-                    // (If the timeout response is not fetched, it will be 
-                    // cleaned up when the clean-up task runs for the next time
-                    // as the requestTimes entry is kept for the requestId.)
-                }
+    }
+    
+    private DeadlineScheduler.Timeout scheduleLeaseExpiry(PendingResponse pendingResponse, 
+            int generation) {
+        return expiryScheduler.schedule(System.currentTimeMillis() + leaseMillis, 
+                () -> pendingResponse.expireLease(generation, requestData -> {
+                    // The polling module has not answered in time, e.g., because it 
+                    // has crashed. Another polling module can fetch the request now.
+                    logRequeue(requestData.getRequestId());
+                    redeliveredRequests.increment();
+                    pendingResponse.getTrace().requeued();
+                    pendingResponse.getQueue().add(requestData);
+                }));
+    }
+    
+    // Queues a popped request again because it could not be handed over to the 
+    // polling module. The reference of the caller to the request is passed on.
+    public void requeueRequest(RequestData requestData) {
+        PendingResponse pendingResponse = pendingResponses.get(requestData.getRequestId());
+        if (pendingResponse == null) {
+            // The request has been answered or has expired in the meantime.
+            requestData.release();
+            return;
+        }
+        if (leaseMillis > 0) {
+            RequestData leasedRequest = pendingResponse.cancelLease();
+            if (leasedRequest == null) {
+                // The lease has ended and the request has already been queued again.
+                requestData.release();
+                return;
             }
+            leasedRequest.release();
         }
+        logRequeue(requestData.getRequestId());
+        pendingResponse.getTrace().requeued();
+        pendingResponse.getQueue().add(requestData);
     }
     
-    // Removes a request from the queue and returns true if the request was 
-    // in the queue before removing it.
-    private boolean removeRequestFromQueue(int requestId) {
-        requestQueueLock.lock();
-        try {
-            return requestQueue.removeIf(request -> request.getRequestId() == requestId);
-        } finally {
-            requestQueueLock.unlock();
+    // Extends the lease of a popped request by the lease time.
+    // Returns false if the request is not leased any more, e.g., because 
+    // it has been answered or queued again.
+    public boolean extendLease(int requestId) {
+        PendingResponse pendingResponse = pendingResponses.get(requestId);
+        return pendingResponse != null && pendingResponse.extendLease(
+                generation -> scheduleLeaseExpiry(pendingResponse, generation));
+    }
+    
+    // Ends the lease of a request that has been answered or has expired.
+    // If the request has just been queued again, it is removed from the queue.
+    private void endLease(PendingResponse pendingResponse) {
+        if (leaseMillis <= 0) {
+            return;
         }
+        RequestData leasedRequest = pendingResponse.closeLease();
+        if (leasedRequest != null) {
+            leasedRequest.release();
+        }
+        pendingResponse.getQueue().cancel(pendingResponse.getRequestId());
     }
+
     
-    // Removes a requestTimes entry for a given request ID
-    private void removeFromRequestTimes(int requestId) {
-        requestTimesLock.lock();
-        try {
-            requestTimes.remove(requestId);
-        } finally {
-            requestTimesLock.unlock();
+    // Registers the response for a request and wakes up the client that waits for it.
+    // Returns false if the response has been discarded because no one is waiting 
+    // for it any more or because the request has already been answered.
+    public boolean registerResponse(ResponseData responseData) {
+        PendingResponse pendingResponse = pendingResponses.remove(responseData.getRequestId());
+        if (pendingResponse == null) {
+            // The request has already been cleaned up due to a timeout
+            // and no one is waiting for it, or another polling module has
+            // answered the request after its lease had ended. Discard the response.
+            metrics.responseDiscarded();
+            return false;
         }
+        metrics.responseRegistered(pendingResponse.getProcessingNanos());
+        pendingResponse.getTrace().responded();
+        pendingResponse.cancelExpiry();
+        endLease(pendingResponse);
+        logComplete(pendingResponse.getRequestId());
+        if (pendingResponse.getCacheKey() != null) {
+            responseData = responseCache.update(pendingResponse.getCacheKey(), 
+                    pendingResponse.getStaleCacheEntry(), responseData);
+        }
+        completeResponse(pendingResponse, responseData);
+        return true;
     }
-       
-    // Find all expired requests in the requestTimes.
-    // Returns a list of their request IDs
-    private List<Integer> getExpiredRequests() {
-        long currentTime = System.currentTimeMillis();
-        requestTimesLock.lock();
-        try {
-            List<Integer> expiredRequests = requestTimes.entrySet().stream()
-                    .filter(e -> e.getValue() + timeoutMillis < currentTime)
-                    .map(Entry::getKey) // collect request IDs
-                    .collect(Collectors.toList());
-            return expiredRequests;
-        } finally {
-            requestTimesLock.unlock();
+    
+    
+    /**
+     * Starts to stream the response for a request to the clients that wait for it.
+     * The body follows in chunks via {@link #writeResponseChunk}.
+     * Streamed responses are not stored in the response cache.
+     * 
+     * @param requestId the ID of the request
+     * @param statusCode the status code of the response
+     * @param headers the headers of the response
+     * @return false if the response has been discarded because no one is waiting
+     * for it any more
+     */
+    public boolean startResponseStream(int requestId, int statusCode, 
+            Map<String, List<String>> headers) {
+        PendingResponse pendingResponse = pendingResponses.remove(requestId);
+        if (pendingResponse == null) {
+            metrics.responseDiscarded();
+            return false;
+        }
+        metrics.responseRegistered(pendingResponse.getProcessingNanos());
+        pendingResponse.getTrace().responded();
+        pendingResponse.cancelExpiry();
+        endLease(pendingResponse);
+        logComplete(requestId);
+        
+        List<PendingResponse> clients = new ArrayList<>(detachFollowers(pendingResponse));
+        if (!pendingResponse.isClientGone() && pendingResponse.getResponse() != null) {
+            clients.add(pendingResponse);
+        }
+        ResponseStream responseStream = new ResponseStream(requestId, clients, 
+                streamWriteTimeoutMillis, this::recordDelivery);
+        responseStreams.put(requestId, responseStream);
+        scheduleIdleCheck(responseStream);
+        responseStream.start(statusCode, headers);
+        return true;
+    }
+    
+    // Forwards the next chunk of a streamed response to the clients.
+    // If the stream is unknown, e.g., because it has been aborted, the chunk is skipped.
+    // Returns false in this case.
+    public boolean writeResponseChunk(int requestId, InputStream in, long length) 
+            throws IOException {
+        ResponseStream responseStream = responseStreams.get(requestId);
+        if (responseStream == null) {
+            BinaryFrames.copyBody(in, OutputStream.nullOutputStream(), length);
+            return false;
+        }
+        responseStream.write(in, length);
+        return true;
+    }
+    
+    // Completes a streamed response. 
+    // Returns false if no client has received the complete response.
+    public boolean endResponseStream(int requestId) {
+        ResponseStream responseStream = responseStreams.remove(requestId);
+        return responseStream != null && responseStream.end();
+    }
+    
+    // Breaks off a streamed response, e.g., because the connection
+    // to the target server is broken.
+    public void abortResponseStream(int requestId) {
+        ResponseStream responseStream = responseStreams.remove(requestId);
+        if (responseStream != null) {
+            responseStream.abort();
+        }
+    }
+    
+    // Aborts the stream if the polling module does not send data in time.
+    private void scheduleIdleCheck(ResponseStream responseStream) {
+        long deadline = responseStream.getLastActivity() + streamIdleTimeoutMillis;
+        responseStream.setIdleCheck(expiryScheduler.schedule(deadline, () -> {
+            if (System.currentTimeMillis() - responseStream.getLastActivity() < streamIdleTimeoutMillis) {
+                // Data has arrived in the meantime.
+                scheduleIdleCheck(responseStream);
+            } else if (responseStreams.remove(responseStream.getRequestId(), responseStream)) {
+                responseStream.abort();
+                Logger.getLogger(RequestManager.class.getName()).log(Level.WARNING, 
+                        "Aborted response stream for request {0} after receiving no data for {1} ms", 
+                        new Object[]{responseStream.getRequestId(), streamIdleTimeoutMillis});
+            }
+        }));
+    }
+    
+    // Clean up a timed out request and answer the client with a timeout response
+    private void expire(PendingResponse pendingResponse) {
+        if (pendingResponses.remove(pendingResponse.getRequestId(), pendingResponse)) {
+            int requestId = pendingResponse.getRequestId();
+            metrics.requestTimedOut();
+            pendingResponse.getTrace().responded();
+            endLease(pendingResponse);
+            logComplete(requestId);
+            // If the timeout is due to the fact that the request has not been
+            // fetched from the queue, remove the request from the queue.
+            pendingResponse.getQueue().cancel(requestId);
+            // To make the timeout visible to a client that may still be waiting,
+            // complete the request with a timeout response.
+            completeResponse(pendingResponse, ResponseData.createTimeoutResponse(requestId));
         }
     }
     
-    public void startCleanUpTask(Long timeoutMillis) {
+    public void startCleanUpTask(Long timeoutMillis, Long expiryCheckIntervalMillis) {
         if (timeoutMillis != null) {
             this.timeoutMillis = timeoutMillis;
         } else {
             Logger.getLogger(this.getClass().getName()).log(Level.INFO,
-                    "Using default value for clean up interval of {0} ms", 
+                    "Using default value for request timeout of {0} ms", 
                     this.timeoutMillis);
         }
-        cleanUpTaskExecutor = Executors.newSingleThreadScheduledExecutor();
+        if (expiryCheckIntervalMillis != null) {
+            this.expiryCheckIntervalMillis = expiryCheckIntervalMillis;
+        }
        
-        // Run the clean up task after the timeout interval
-        cleanUpTaskExecutor.scheduleAtFixedRate(this::cleanUp, 
-                this.timeoutMillis, this.timeoutMillis, TimeUnit.MILLISECONDS);
+        // Check for expired requests in the given interval
+        expiryScheduler.start(this.expiryCheckIntervalMillis);
     }    
     
+    // Checks whether a new request with a body of the given size 
+    // (-1 if unknown) can be accepted.
+    public boolean admitRequest(long expectedBodyBytes) {
+        return admissionControl.admit(getHeldBytes(), getQueuedRequests(), expectedBodyBytes);
+    }
+    
+    public void setCoalescing(RequestCoalescing coalescing) {
+        this.coalescing = coalescing;
+    }
+    
+    // null if requests are not coalesced
+    public RequestCoalescing getCoalescing() {
+        return coalescing;
+    }
+    
+    public void setResponseCache(ResponseCache responseCache) {
+        this.responseCache = responseCache;
+    }
+    
+    // null if there is no response cache
+    public ResponseCache getResponseCache() {
+        return responseCache;
+    }
+    
+    public void setAdmissionControl(AdmissionControl admissionControl) {
+        this.admissionControl = admissionControl;
+    }
+    
+    public AdmissionControl getAdmissionControl() {
+        return admissionControl;
+    }
+    
+    // Bytes held for the bodies of queued requests and undelivered responses
+    public long getHeldBytes() {
+        return getQueuedBodyBytes() + pendingResponseBytes.get();
+    }
+    
+    // Number of requests in all queues
+    public int getQueuedRequests() {
+        int queuedRequests = defaultQueue.size();
+        for (RequestQueue queue : namedQueues.values()) {
+            queuedRequests += queue.size();
+        }
+        return queuedRequests;
+    }
+    
+    public long getQueuedBodyBytes() {
+        long bodyBytes = defaultQueue.getBodyBytes();
+        for (RequestQueue queue : namedQueues.values()) {
+            bodyBytes += queue.getBodyBytes();
+        }
+        return bodyBytes;
+    }
+    
+    public long getPendingResponseBytes() {
+        return pendingResponseBytes.get();
+    }
+    
+    // Number of requests that wait for their response
+    public int getPendingResponses() {
+        return pendingResponses.size();
+    }
+    
+    public void setDeadlineHeader(String deadlineHeader) {
+        this.deadlineHeader = deadlineHeader;
+    }
+    
+    public RelayMetrics getMetrics() {
+        return metrics;
+    }
+    
+    public void setLeaseMillis(long leaseMillis) {
+        this.leaseMillis = leaseMillis;
+    }
+    
+    // Number of requests that have been queued again after their lease had ended
+    public long getRedeliveredRequests() {
+        return redeliveredRequests.sum();
+    }
+    
+    public void setStreamIdleTimeoutMillis(long streamIdleTimeoutMillis) {
+        this.streamIdleTimeoutMillis = streamIdleTimeoutMillis;
+    }
+    
+    public void setStreamWriteTimeoutMillis(long streamWriteTimeoutMillis) {
+        this.streamWriteTimeoutMillis = streamWriteTimeoutMillis;
+    }
+    
+    // Number of responses that are being streamed to the clients
+    public int getResponseStreams() {
+        return responseStreams.size();
+    }
+    
+    public void setRequestBodyMemoryThreshold(long requestBodyMemoryThreshold) {
+        this.requestBodyMemoryThreshold = requestBodyMemoryThreshold;
+    }
+    
+    // Stores the request bodies that are kept in memory outside of the heap.
+    // Must be set before the request log is started.
+    public void setBodyArena(BodyArena bodyArena) {
+        this.bodyArena = bodyArena;
+    }
+    
+    // Returns null if the request bodies are kept on the heap
+    public BodyArena getBodyArena() {
+        return bodyArena;
+    }
+    
     public void stopCleanUpTask() {
-        cleanUpTaskExecutor.shutdown();
+        expiryScheduler.stop();
+    }
+    
+    // Allows up to maxConnections WebSocket connections of polling modules.
+    public void startPollerDispatchers(int maxConnections) {
+        AtomicInteger threadCounter = new AtomicInteger();
+        pollerDispatchers = new ThreadPoolExecutor(0, maxConnections, 
+                60, TimeUnit.SECONDS, new SynchronousQueue<>(), runnable -> {
+                    Thread thread = new Thread(runnable, 
+                            "poller-dispatcher-" + threadCounter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+    
+    // Runs the dispatcher of a WebSocket connection on a thread of its own.
+    // Returns null if the maximum number of connections has been reached.
+    public Future<?> startPollerDispatcher(Runnable dispatcher) {
+        ExecutorService executor = pollerDispatchers;
+        if (executor == null) {
+            return null;
+        }
+        try {
+            return executor.submit(dispatcher);
+        } catch (RejectedExecutionException ex) {
+            return null;
+        }
+    }
+    
+    // Interrupts the dispatchers of the WebSocket connections.
+    public void stopPollerDispatchers() {
+        ExecutorService executor = pollerDispatchers;
+        if (executor != null) {
+            pollerDispatchers = null;
+            executor.shutdownNow();
+        }
+    }
+    
+    // Replays the request log and queues the requests that have been 
+    // neither popped nor completed before the restart. If leases are used,
+    // popped requests that have not been completed are queued as well.
+    // From now on, all requests are written to the log.
+    public void startRequestLog(RequestLog requestLog) throws IOException {
+        List<RequestLog.LoggedRequest> loggedRequests = requestLog.replay(requestBodyMemoryThreshold,
+                leaseMillis > 0, bodyArena);
+        requestCounter.accumulateAndGet(requestLog.getMaxRequestId(), Math::max);
+        requestLog.start();
+        this.requestLog = requestLog;
+        
+        for (RequestLog.LoggedRequest loggedRequest : loggedRequests) {
+            RequestData requestData = loggedRequest.getRequestData();
+            RequestQueue queue = getQueue(loggedRequest.getQueueName());
+            if (queue == null) {
+                // The queue has been removed from the configuration.
+                Logger.getLogger(RequestManager.class.getName()).log(Level.WARNING, 
+                        "Discarding request {0} for unknown queue \"{1}\"", 
+                        new Object[]{requestData.getRequestId(), loggedRequest.getQueueName()});
+                requestData.release();
+                logComplete(requestData.getRequestId());
+                continue;
+            }
+            // There is no client waiting for the response any more.
+            // The handle is only needed to let the request expire.
+            long deadline = requestData.getDeadline() != 0 ? requestData.getDeadline()
+                    : loggedRequest.getRequestTime() + getTimeoutMillis(queue);
+            PendingResponse pendingResponse = new PendingResponse(requestData.getRequestId(), 
+                    loggedRequest.getRequestTime(), queue, null);
+            RequestTrace trace = new RequestTrace(requestData.getRequestId(), queue.getName(),
+                    requestData.getMethod(), requestData.getUri(), loggedRequest.getRequestTime());
+            trace.enqueued();
+            pendingResponse.setTrace(trace);
+            registerPendingResponse(pendingResponse, deadline);
+            queue.add(requestData);
+        }
+        Logger.getLogger(RequestManager.class.getName()).log(Level.INFO, 
+                "Restored {0} requests from the request log", loggedRequests.size());
+    }
+    
+    public void startAccessLog(AccessLog accessLog) throws IOException {
+        accessLog.start();
+        this.accessLog = accessLog;
+    }
+    
+    public void stopAccessLog() {
+        AccessLog log = accessLog;
+        if (log != null) {
+            accessLog = null;
+            log.close();
+        }
+    }
+    
+    public AccessLog getAccessLog() {
+        return accessLog;
+    }
+    
+    // Returns the traces of the requests whose responses have not arrived yet, 
+    // the oldest first.
+    public List<RequestTrace> getInFlightRequests() {
+        List<RequestTrace> traces = new ArrayList<>();
+        for (PendingResponse pendingResponse : pendingResponses.values()) {
+            traces.add(pendingResponse.getTrace());
+        }
+        traces.sort(Comparator.comparingLong(RequestTrace::getReceivedTime));
+        return traces;
+    }
+    
+    public Collection<ResponseStream> getActiveResponseStreams() {
+        return responseStreams.values();
+    }
+    
+    public void stopRequestLog() {
+        if (requestLog != null) {
+            requestLog.close();
+        }
     }
 }
@@ -0,0 +1,161 @@
+package de.imbei.httpqueueserver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Queue of requests that can be used by many producers and multiple
+ * polling modules concurrently.
+ * The order in which the requests are popped is decided by a 
+ * {@link RequestScheduler}. The default scheduler is FIFO without a global lock.
+ * Requests can be cancelled by their ID in constant time. Cancelled requests
+ * stay in the queue and are skipped when they are reached.
+ * Each queue has its own polling modules, which wait only for requests
+ * in this queue.
+ */
+public class RequestQueue {
+
+    // null for the default queue
+    private final String name;
+    // Overrides the global request timeout if not null
+    private final Long timeoutMillis;
+
+    static final class Entry {
+        final int requestId;
+        final long bodySize;
+        final int priority;
+        final String clientKey;
+        final long enqueueNanos = System.nanoTime();
+        final long deadline;
+        // Released when the request is cancelled or popped
+        volatile RequestData requestData;
+        // Can be used by the scheduler to mark entries that it has returned
+        boolean popped;
+
+        Entry(RequestData requestData, int priority, String clientKey) {
+            this.requestId = requestData.getRequestId();
+            this.bodySize = requestData.getBody().getSize();
+            this.priority = priority;
+            this.clientKey = clientKey;
+            this.deadline = requestData.getDeadline();
+            this.requestData = requestData;
+        }
+    }
+
+    private final SchedulingPolicy schedulingPolicy;
+    private final RequestScheduler scheduler;
+
+    // Contains the entries that have been neither popped nor cancelled.
+    // Removing an entry from this map claims it.
+    private final Map<Integer, Entry> entries = new ConcurrentHashMap<>();
+
+    // One permit for each entry in the queue (including cancelled ones).
+    // Polling modules wait for a permit when the queue is empty.
+    private final Semaphore available = new Semaphore(0);
+
+    // Total size of the bodies of the requests in the queue
+    private final AtomicLong bodyBytes = new AtomicLong();
+
+    public RequestQueue(String name, Long timeoutMillis, SchedulingPolicy schedulingPolicy) {
+        this.name = name;
+        this.timeoutMillis = timeoutMillis;
+        this.schedulingPolicy = schedulingPolicy;
+        this.scheduler = schedulingPolicy.newScheduler();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    public void add(RequestData requestData) {
+        Entry entry = new Entry(requestData, schedulingPolicy.getPriority(requestData), 
+                schedulingPolicy.getClientKey(requestData));
+        bodyBytes.addAndGet(entry.bodySize);
+        entries.put(entry.requestId, entry);
+        scheduler.add(entry);
+        available.release();
+    }
+
+    // Removes the request from the queue.
+    // Returns true if the request was in the queue before.
+    public boolean cancel(int requestId) {
+        Entry entry = entries.remove(requestId);
+        if (entry == null) {
+            return false;
+        }
+        bodyBytes.addAndGet(-entry.bodySize);
+        entry.requestData.release();
+        entry.requestData = null;
+        return true;
+    }
+
+    // Number of requests waiting in the queue
+    public int size() {
+        return entries.size();
+    }
+
+    // Total size of the bodies of the requests waiting in the queue
+    public long getBodyBytes() {
+        return bodyBytes.get();
+    }
+
+    // Removes up to maxRequests requests from the queue.
+    // Waits up to waitNanos for the first request. After the first request
+    // has been taken, waits up to lingerNanos for more requests to fill the batch.
+    public List<RequestData> poll(int maxRequests, long waitNanos, long lingerNanos)
+            throws InterruptedException {
+        RequestData first = poll(waitNanos);
+        if (first == null) {
+            return Collections.emptyList();
+        }
+        List<RequestData> requests = new ArrayList<>();
+        requests.add(first);
+
+        long lingerEnd = System.nanoTime() + lingerNanos;
+        while (requests.size() < maxRequests) {
+            RequestData next = poll(Math.max(0, lingerEnd - System.nanoTime()));
+            if (next == null) {
+                break;
+            }
+            requests.add(next);
+        }
+        return requests;
+    }
+
+    // Removes the first request from the queue.
+    // Waits up to waitNanos until a request arrives and returns null if none arrived.
+    public RequestData poll(long waitNanos) throws InterruptedException {
+        long end = System.nanoTime() + waitNanos;
+        while (available.tryAcquire(Math.max(0, end - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+            // Each permit is released after its entry has been added,
+            // therefore the queue cannot be empty here.
+            Entry entry = scheduler.poll();
+            if (entries.remove(entry.requestId, entry)) {
+                bodyBytes.addAndGet(-entry.bodySize);
+                RequestData requestData = entry.requestData;
+                // The scheduler may keep the entry a while longer.
+                entry.requestData = null;
+                if (entry.deadline != 0 && entry.deadline <= System.currentTimeMillis()) {
+                    // No one waits for the response any more, but the expiry 
+                    // has not been processed yet. Skip the request.
+                    requestData.release();
+                    continue;
+                }
+                return requestData;
+            }
+            // The request has been cancelled. Skip it.
+        }
+        return null;
+    }
+
+}
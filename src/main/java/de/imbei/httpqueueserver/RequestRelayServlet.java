@@ -1,13 +1,21 @@
 package de.imbei.httpqueueserver;
 
 import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 import javax.servlet.ServletConfig;
 
 /**
@@ -16,39 +24,327 @@ import javax.servlet.ServletConfig;
  * http://the-target-server-url/abc/xyz?u=123 and the answer is returned as
  * answer of this servlet.
  * This way, the response looks like it is coming from the target server.
+ * If "abc" is the name of a queue configured via the init parameter "queues",
+ * the request is put into this queue and translated to a request like 
+ * http://the-target-server-url/xyz?u=123.
  */
-@WebServlet(name = "RequestRelayServlet", urlPatterns = {"/relay"})
+@WebServlet(name = "RequestRelayServlet", urlPatterns = {"/relay"}, asyncSupported = true)
 public class RequestRelayServlet extends HttpServlet {
 
     private final RequestManager requestManager = RequestManager.getInstance();
     
+    // If true, waiting for the response does not block a container thread.
+    private boolean asyncRelay = true;
+    
+    // Sent to clients whose requests are rejected because the server is overloaded
+    private long retryAfterSeconds = 10;
+    
     @Override
     public void init(ServletConfig config) throws ServletException {
         super.init(config);
         
-        String timeoutSecondsStr = config.getInitParameter("requestProcessingTimeoutSeconds");
-        Long timeoutMillis;
-        if (timeoutSecondsStr != null) {
+        Long timeoutSeconds = getLongInitParameter(config, "requestProcessingTimeoutSeconds");
+        Long timeoutMillis = timeoutSeconds == null ? null : timeoutSeconds * 1000;
+        Long expiryCheckIntervalMillis = getLongInitParameter(config, "expiryCheckIntervalMillis");
+        Long requestBodyMemoryThreshold = getLongInitParameter(config, "requestBodyMemoryThresholdBytes");
+        if (requestBodyMemoryThreshold != null) {
+            requestManager.setRequestBodyMemoryThreshold(requestBodyMemoryThreshold);
+        }
+        Long requestBodyArenaBytes = getLongInitParameter(config, "requestBodyArenaBytes");
+        if (requestBodyArenaBytes != null && requestBodyArenaBytes > 0) {
+            requestManager.setBodyArena(new BodyArena(requestBodyArenaBytes));
+        }
+        
+        Long streamIdleTimeoutSeconds = getLongInitParameter(config, "streamIdleTimeoutSeconds");
+        if (streamIdleTimeoutSeconds != null) {
+            requestManager.setStreamIdleTimeoutMillis(streamIdleTimeoutSeconds * 1000);
+        }
+        Long streamWriteTimeoutSeconds = getLongInitParameter(config, "streamWriteTimeoutSeconds");
+        if (streamWriteTimeoutSeconds != null) {
+            requestManager.setStreamWriteTimeoutMillis(streamWriteTimeoutSeconds * 1000);
+        }
+        
+        Long leaseSeconds = getLongInitParameter(config, "leaseSeconds");
+        if (leaseSeconds != null) {
+            requestManager.setLeaseMillis(leaseSeconds * 1000);
+        }
+        
+        String deadlineHeader = getStringInitParameter(config, "deadlineHeader");
+        if (deadlineHeader != null) {
+            requestManager.setDeadlineHeader(deadlineHeader);
+        }
+        
+        String asyncRelayStr = config.getInitParameter("asyncRelay");
+        if (asyncRelayStr != null && !asyncRelayStr.isBlank()) {
+            asyncRelay = Boolean.parseBoolean(asyncRelayStr.trim());
+        }
+        
+        initAdmissionControl(config);
+        initResponseCache(config);
+        initCoalescing(config);
+        initSchedulingPolicy(config);
+        initQueues(config);
+        
+        requestManager.startCleanUpTask(timeoutMillis, expiryCheckIntervalMillis);
+        
+        Long maxPollerConnections = getLongInitParameter(config, "maxPollerConnections");
+        requestManager.startPollerDispatchers(maxPollerConnections != null && maxPollerConnections > 0 
+                ? (int) Math.min(maxPollerConnections, Integer.MAX_VALUE) : 64);
+        
+        String accessLogFile = config.getInitParameter("accessLogFile");
+        if (accessLogFile != null && !accessLogFile.isBlank()) {
+            startAccessLog(config, Paths.get(accessLogFile.trim()));
+        }
+        
+        String requestLogDirectory = config.getInitParameter("requestLogDirectory");
+        if (requestLogDirectory != null && !requestLogDirectory.isBlank()) {
+            startRequestLog(config, Paths.get(requestLogDirectory.trim()));
+        }
+    }
+    
+    private void initResponseCache(ServletConfig config) {
+        Long maxBytes = getLongInitParameter(config, "responseCacheMaxBytes");
+        if (maxBytes == null || maxBytes <= 0) {
+            return;
+        }
+        String varyHeaders = getStringInitParameter(config, "responseCacheVaryHeaders");
+        if (varyHeaders == null) {
+            varyHeaders = "Accept, Accept-Encoding";
+        }
+        requestManager.setResponseCache(new ResponseCache(maxBytes, splitList(varyHeaders)));
+    }
+    
+    private static List<String> splitList(String value) {
+        List<String> list = new ArrayList<>();
+        for (String element : value.split(",")) {
+            if (!element.isBlank()) {
+                list.add(element.trim());
+            }
+        }
+        return list;
+    }
+    
+    private void initCoalescing(ServletConfig config) {
+        String pattern = getStringInitParameter(config, "coalescePattern");
+        if (pattern == null) {
+            return;
+        }
+        String identityHeaders = getStringInitParameter(config, "coalesceHeaders");
+        if (identityHeaders == null) {
+            identityHeaders = "Accept, Accept-Encoding, Authorization, Cookie";
+        }
+        try {
+            requestManager.setCoalescing(new RequestCoalescing(Pattern.compile(pattern), 
+                    splitList(identityHeaders)));
+        } catch (PatternSyntaxException ex) {
+            Logger.getLogger(this.getClass().getName()).log(Level.WARNING, 
+                    "Could not parse value of \"{0}\" for parameter \"coalescePattern\". Requests are not coalesced", 
+                    pattern);
+        }
+    }
+    
+    private void initSchedulingPolicy(ServletConfig config) {
+        String scheduling = config.getInitParameter("scheduling");
+        if (scheduling == null || !scheduling.trim().equalsIgnoreCase("fair")) {
+            return;
+        }
+        Long priorityLevels = getLongInitParameter(config, "priorityLevels");
+        Long defaultPriority = getLongInitParameter(config, "defaultPriority");
+        Long starvationMillis = getLongInitParameter(config, "starvationMillis");
+        requestManager.setSchedulingPolicy(new SchedulingPolicy(
+                priorityLevels == null ? 3 : priorityLevels.intValue(),
+                defaultPriority == null ? 1 : defaultPriority.intValue(),
+                getStringInitParameter(config, "priorityHeader"),
+                getIntMapInitParameter(config, "priorityRules"),
+                getStringInitParameter(config, "clientKeyHeader"),
+                getIntMapInitParameter(config, "clientWeights"),
+                starvationMillis == null ? 10000 : starvationMillis));
+    }
+    
+    // Adds the queues from the comma-separated list in the parameter "queues".
+    // The timeout for each queue can be set via the parameter 
+    // "requestProcessingTimeoutSeconds.queuename".
+    private void initQueues(ServletConfig config) {
+        String queues = config.getInitParameter("queues");
+        if (queues == null || queues.isBlank()) {
+            return;
+        }
+        for (String queueName : queues.split(",")) {
+            queueName = queueName.trim();
+            if (queueName.isEmpty()) {
+                continue;
+            }
+            if (queueName.contains("/")) {
+                Logger.getLogger(this.getClass().getName()).log(Level.WARNING, 
+                        "Ignoring queue \"{0}\": the name must not contain \"/\"", queueName);
+                continue;
+            }
+            Long timeoutSeconds = getLongInitParameter(config, 
+                    "requestProcessingTimeoutSeconds." + queueName);
+            requestManager.addQueue(queueName, timeoutSeconds == null ? null : timeoutSeconds * 1000);
+        }
+    }
+    
+    private void initAdmissionControl(ServletConfig config) {
+        Long highWatermarkBytes = getLongInitParameter(config, "highWatermarkBytes");
+        Long lowWatermarkBytes = getLongInitParameter(config, "lowWatermarkBytes");
+        Long highWatermarkRequests = getLongInitParameter(config, "highWatermarkRequests");
+        Long lowWatermarkRequests = getLongInitParameter(config, "lowWatermarkRequests");
+        if (highWatermarkBytes == null) {
+            highWatermarkBytes = 0L;
+        }
+        if (lowWatermarkBytes == null) {
+            lowWatermarkBytes = highWatermarkBytes * 8 / 10;
+        }
+        if (highWatermarkRequests == null) {
+            highWatermarkRequests = 0L;
+        }
+        if (lowWatermarkRequests == null) {
+            lowWatermarkRequests = highWatermarkRequests * 8 / 10;
+        }
+        requestManager.setAdmissionControl(new AdmissionControl(highWatermarkBytes, 
+                lowWatermarkBytes, highWatermarkRequests.intValue(), lowWatermarkRequests.intValue()));
+        
+        Long retryAfter = getLongInitParameter(config, "retryAfterSeconds");
+        if (retryAfter != null) {
+            retryAfterSeconds = retryAfter;
+        }
+    }
+    
+    private void startRequestLog(ServletConfig config, Path directory) throws ServletException {
+        Long segmentSize = getLongInitParameter(config, "requestLogSegmentSizeBytes");
+        if (segmentSize == null) {
+            segmentSize = 64L * 1024 * 1024;
+        }
+        Long fsyncIntervalMillis = getLongInitParameter(config, "requestLogFsyncIntervalMillis");
+        if (fsyncIntervalMillis == null) {
+            fsyncIntervalMillis = 1000L;
+        }
+        RequestLog.FsyncPolicy fsyncPolicy = RequestLog.FsyncPolicy.INTERVAL;
+        String fsyncPolicyStr = config.getInitParameter("requestLogFsync");
+        if (fsyncPolicyStr != null && !fsyncPolicyStr.isBlank()) {
             try {
-                timeoutMillis = Long.valueOf(timeoutSecondsStr) * 1000;
+                fsyncPolicy = RequestLog.FsyncPolicy.valueOf(fsyncPolicyStr.trim().toUpperCase());
+            } catch (IllegalArgumentException ex) {
+                Logger.getLogger(this.getClass().getName()).log(Level.WARNING, 
+                        "Could not parse value of \"{0}\" for parameter \"requestLogFsync\". Using default value", 
+                        fsyncPolicyStr);
+            }
+        }
+        
+        try {
+            requestManager.startRequestLog(new RequestLog(directory, segmentSize, 
+                    fsyncPolicy, fsyncIntervalMillis));
+        } catch (IOException ex) {
+            throw new ServletException("Could not open the request log in " + directory, ex);
+        }
+    }
+    
+    private void startAccessLog(ServletConfig config, Path file) throws ServletException {
+        double sampleRate = 1;
+        String sampleRateStr = getStringInitParameter(config, "accessLogSampleRate");
+        if (sampleRateStr != null) {
+            try {
+                sampleRate = Double.parseDouble(sampleRateStr);
             } catch (NumberFormatException ex) {
-                timeoutMillis = null;
                 Logger.getLogger(this.getClass().getName()).log(Level.WARNING, 
-                        "Could not parse value of \"{0}\" for parameter \"requestProcessingTimeoutSeconds\". Using default value", 
-                        timeoutSecondsStr);
+                        "Could not parse value of \"{0}\" for parameter \"accessLogSampleRate\". Using default value", 
+                        sampleRateStr);
             }
-        } else {
-            timeoutMillis = null;
         }
+        Long slowMillis = getLongInitParameter(config, "accessLogSlowMillis");
+        Long bufferSize = getLongInitParameter(config, "accessLogBufferSize");
         
-        requestManager.startCleanUpTask(timeoutMillis);
+        try {
+            requestManager.startAccessLog(new AccessLog(file, sampleRate, 
+                    slowMillis == null ? 0 : slowMillis, 
+                    bufferSize == null ? 8192 : bufferSize.intValue()));
+        } catch (IOException ex) {
+            throw new ServletException("Could not open the access log " + file, ex);
+        }
+    }
+    
+    // Returns null if the parameter is not set or cannot be parsed.
+    private Long getLongInitParameter(ServletConfig config, String name) {
+        String valueStr = config.getInitParameter(name);
+        if (valueStr == null || valueStr.isBlank()) {
+            return null;
+        }
+        try {
+            return Long.valueOf(valueStr.trim());
+        } catch (NumberFormatException ex) {
+            Logger.getLogger(this.getClass().getName()).log(Level.WARNING, 
+                    "Could not parse value of \"{0}\" for parameter \"{1}\". Using default value", 
+                    new Object[]{valueStr, name});
+            return null;
+        }
+    }
+    
+    // Returns null if the parameter is not set.
+    private String getStringInitParameter(ServletConfig config, String name) {
+        String value = config.getInitParameter(name);
+        if (value == null || value.isBlank()) {
+            return null;
+        }
+        return value.trim();
+    }
+    
+    // Parses a comma-separated list of the form "key1:1, key2:2".
+    // Entries that cannot be parsed are ignored.
+    private Map<String, Integer> getIntMapInitParameter(ServletConfig config, String name) {
+        Map<String, Integer> map = new LinkedHashMap<>();
+        String valueStr = config.getInitParameter(name);
+        if (valueStr == null || valueStr.isBlank()) {
+            return map;
+        }
+        for (String entry : valueStr.split(",")) {
+            int separator = entry.lastIndexOf(':');
+            try {
+                map.put(entry.substring(0, separator).trim(), 
+                        Integer.valueOf(entry.substring(separator + 1).trim()));
+            } catch (IndexOutOfBoundsException | NumberFormatException ex) {
+                Logger.getLogger(this.getClass().getName()).log(Level.WARNING, 
+                        "Could not parse entry \"{0}\" of parameter \"{1}\". Ignoring it", 
+                        new Object[]{entry, name});
+            }
+        }
+        return map;
     }
     
     protected void processRequest(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {
         
+        if (request.getAttribute(ResponseStream.ABORTED_ATTRIBUTE) != null) {
+            // The response has been streamed to the client, but not completely.
+            // Failing the request makes the container close the connection.
+            throw new IOException("The response stream has been aborted");
+        }
+        
+        RequestQueue queue = requestManager.routeRequest(request.getPathInfo());
+        if (requestManager.respondFromCache(request, response, queue)) {
+            return;
+        }
+        
+        // Reject the request before its body is read if the server is overloaded.
+        // Without a Content-Length, there is only a body if it is sent chunked,
+        // and then its size is unknown.
+        long expectedBodyBytes = request.getContentLengthLong();
+        if (expectedBodyBytes < 0 && request.getHeader("Transfer-Encoding") == null) {
+            expectedBodyBytes = 0;
+        }
+        if (!requestManager.admitRequest(expectedBodyBytes)) {
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            response.setHeader("Retry-After", Long.toString(retryAfterSeconds));
+            return;
+        }
+        
+        if (asyncRelay && request.isAsyncSupported()) {
+            requestManager.relayRequestAsync(request, queue);
+            return;
+        }
+        
         try {
-            requestManager.relayRequest(request, response);
+            requestManager.relayRequest(request, response, queue);
         } catch (InterruptedException ex) {
             Logger.getLogger(RequestRelayServlet.class.getName()).log(Level.SEVERE, null, ex);
         }
@@ -57,6 +353,9 @@ public class RequestRelayServlet extends HttpServlet {
     @Override
     public void destroy() {
         requestManager.stopCleanUpTask();
+        requestManager.stopPollerDispatchers();
+        requestManager.stopRequestLog();
+        requestManager.stopAccessLog();
     }
 
     // <editor-fold defaultstate="collapsed" desc="HttpServlet methods. Click on the + sign on the left to edit the code.">
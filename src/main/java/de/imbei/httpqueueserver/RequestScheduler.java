@@ -0,0 +1,15 @@
+package de.imbei.httpqueueserver;
+
+/**
+ * Decides in which order the requests of a {@link RequestQueue} are popped.
+ * The queue guarantees that {@link #poll()} is only called if there is
+ * an entry that has been added and not been polled yet.
+ * Implementations must be thread-safe.
+ */
+public interface RequestScheduler {
+
+    void add(RequestQueue.Entry entry);
+
+    RequestQueue.Entry poll();
+
+}
@@ -0,0 +1,138 @@
+package de.imbei.httpqueueserver;
+
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+
+/**
+ * Timestamps of the phases of a relayed request, for finding out why a single
+ * request has taken long. The timestamps are epoch milliseconds, 0 means that
+ * the phase has not been reached yet.
+ * Completed traces are written to the {@link AccessLog}, the traces of the
+ * requests in flight can be listed via /debug/requests.
+ */
+public class RequestTrace {
+
+    private final int requestId;
+    // null for the default queue
+    private final String queueName;
+    private final String method;
+    private final String uri;
+    private final long receivedTime;
+    private volatile long enqueuedTime;
+    private volatile long poppedTime;
+    // The polling module that has popped the request last
+    private volatile String poller;
+    // Number of times the request has been popped
+    private volatile int attempts;
+    private volatile long respondedTime;
+    private volatile long deliveredTime;
+    private volatile int statusCode;
+    private volatile boolean deliveryFailed;
+    // Set if the client has received the response to an identical request
+    private volatile Integer leaderId;
+
+    public RequestTrace(int requestId, String queueName, String method, String uri,
+            long receivedTime) {
+        this.requestId = requestId;
+        this.queueName = queueName;
+        this.method = method;
+        this.uri = uri;
+        this.receivedTime = receivedTime;
+    }
+
+    public int getRequestId() {
+        return requestId;
+    }
+
+    public long getReceivedTime() {
+        return receivedTime;
+    }
+
+    public void enqueued() {
+        enqueuedTime = System.currentTimeMillis();
+    }
+
+    public void popped(String poller) {
+        this.poller = poller;
+        attempts++;
+        poppedTime = System.currentTimeMillis();
+    }
+
+    // The lease has ended and the request is waiting in the queue again.
+    public void requeued() {
+        poppedTime = 0;
+        enqueuedTime = System.currentTimeMillis();
+    }
+
+    public void responded() {
+        respondedTime = System.currentTimeMillis();
+    }
+
+    public void coalesced(int leaderId) {
+        this.leaderId = leaderId;
+    }
+
+    public void delivered(int statusCode, boolean failed) {
+        this.statusCode = statusCode;
+        this.deliveryFailed = failed;
+        deliveredTime = System.currentTimeMillis();
+    }
+
+    // The phase that the request is in
+    public String getPhase() {
+        if (deliveredTime != 0) {
+            return "delivered";
+        } else if (respondedTime != 0) {
+            return "delivering";
+        } else if (poppedTime != 0) {
+            return "processing";
+        } else if (enqueuedTime != 0) {
+            return "queued";
+        } else if (leaderId != null) {
+            return "coalesced";
+        }
+        return "received";
+    }
+
+    // Time from receiving the request until the response has been delivered or until now
+    public long getAgeMillis() {
+        long end = deliveredTime != 0 ? deliveredTime : System.currentTimeMillis();
+        return end - receivedTime;
+    }
+
+    public void write(JsonWriter writer) throws IOException {
+        writer.beginObject();
+        writer.name("requestId").value(requestId);
+        if (queueName != null) {
+            writer.name("queue").value(queueName);
+        }
+        writer.name("method").value(method);
+        writer.name("uri").value(uri);
+        writer.name("phase").value(getPhase());
+        writer.name("ageMillis").value(getAgeMillis());
+        writeTime(writer, "received", receivedTime);
+        writeTime(writer, "enqueued", enqueuedTime);
+        writeTime(writer, "popped", poppedTime);
+        if (poller != null) {
+            writer.name("poller").value(poller);
+            writer.name("attempts").value(attempts);
+        }
+        if (leaderId != null) {
+            writer.name("coalescedWith").value(leaderId);
+        }
+        writeTime(writer, "responded", respondedTime);
+        writeTime(writer, "delivered", deliveredTime);
+        if (deliveredTime != 0) {
+            writer.name("status").value(statusCode);
+            writer.name("deliveryFailed").value(deliveryFailed);
+        }
+        writer.endObject();
+    }
+
+    private static void writeTime(JsonWriter writer, String name, long time) throws IOException {
+        if (time != 0) {
+            writer.name(name).value(time);
+        }
+    }
+
+}
@@ -0,0 +1,375 @@
+package de.imbei.httpqueueserver;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * In-memory cache for the responses to GET requests.
+ * The cache is keyed by the queue, the URI and the values of the configured
+ * "Vary" headers of the request. Responses are only stored if the target server
+ * allows it via "Cache-Control" or "Expires", and they are kept until they
+ * expire or until they are evicted as least recently used because the cache
+ * is full. Expired responses with an "ETag" are revalidated through the
+ * polling module via "If-None-Match". If the target server answers with
+ * 304 (Not Modified), the cached response is refreshed and sent to the client.
+ * Requests with cookies are only cached if "Cookie" is one of the "Vary" headers,
+ * and responses that set cookies are never cached.
+ */
+public class ResponseCache {
+
+    // Larger ages are treated as this value (2^31 seconds, see RFC 9111, 1.2.2).
+    private static final long MAX_AGE_SECONDS = 2147483648L;
+
+    /**
+     * A cached response together with its validity.
+     */
+    public static final class Entry {
+        private final ResponseData responseData;
+        private final String etag;
+        // epoch milliseconds
+        private final long expires;
+        private final long size;
+
+        private Entry(ResponseData responseData, long expires) {
+            this.responseData = responseData;
+            this.etag = responseData.getHeader("ETag");
+            this.expires = expires;
+            long size = responseData.getBody().length;
+            for (Map.Entry<String, List<String>> header : responseData.getHeaders().entrySet()) {
+                size += header.getKey().length();
+                for (String value : header.getValue()) {
+                    size += value.length();
+                }
+            }
+            this.size = size;
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+
+        public boolean isFresh(long now) {
+            return now < expires;
+        }
+
+        // Returns true if the "If-None-Match" header of a client matches the ETag.
+        public boolean matches(String ifNoneMatch) {
+            if (etag == null || ifNoneMatch == null) {
+                return false;
+            }
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.equals("*") || weak(tag).equals(weak(etag))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static String weak(String tag) {
+            return tag.startsWith("W/") ? tag.substring(2) : tag;
+        }
+    }
+
+    private final long maxBytes;
+    private final List<String> varyHeaders;
+
+    // in the order of access, the least recently used entry first
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes = 0;
+    private final Lock lock = new ReentrantLock();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public ResponseCache(long maxBytes, List<String> varyHeaders) {
+        this.maxBytes = maxBytes;
+        this.varyHeaders = varyHeaders;
+    }
+
+    /**
+     * Returns the key for the request or null if the response to the request
+     * must not be cached.
+     *
+     * @param request the request from the client
+     * @param queue the queue to which the request is routed
+     * @return the key
+     */
+    public String getKey(HttpServletRequest request, RequestQueue queue) {
+        if (!"GET".equals(request.getMethod()) || request.getHeader("Authorization") != null
+                || hasDirective(request.getHeader("Cache-Control"), "no-store")) {
+            return null;
+        }
+        // The response may depend on the session of the user.
+        if (request.getHeader("Cookie") != null
+                && varyHeaders.stream().noneMatch("Cookie"::equalsIgnoreCase)) {
+            return null;
+        }
+        StringBuilder key = new StringBuilder();
+        if (queue.getName() != null) {
+            key.append(queue.getName());
+        }
+        key.append('\n').append(RequestData.extractUri(request, queue.getName()));
+        for (String varyHeader : varyHeaders) {
+            key.append('\n');
+            String value = request.getHeader(varyHeader);
+            if (value != null) {
+                key.append(value);
+            }
+        }
+        return key.toString();
+    }
+
+    // Returns true if the client allows a response from the cache without revalidation.
+    public static boolean acceptsCachedResponse(HttpServletRequest request) {
+        return !hasDirective(request.getHeader("Cache-Control"), "no-cache")
+                && !hasDirective(request.getHeader("Pragma"), "no-cache");
+    }
+
+    // Returns the entry for the key, which may be expired, or null.
+    // Hits and misses are only counted by this method.
+    public Entry get(String key) {
+        lock.lock();
+        try {
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                misses.increment();
+            } else if (entry.isFresh(System.currentTimeMillis())) {
+                hits.increment();
+            }
+            return entry;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Returns the entry for the key, which may be expired, or null.
+    public Entry peek(String key) {
+        lock.lock();
+        try {
+            return entries.get(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stores the response from the target server if it is cacheable and returns
+     * the response that is to be sent to the client.
+     *
+     * @param key the key of the request
+     * @param staleEntry the entry that has been revalidated or null
+     * @param responseData the response from the target server
+     * @return the response for the client. If the stale entry is still valid,
+     * this is the refreshed cached response.
+     */
+    public ResponseData update(String key, Entry staleEntry, ResponseData responseData) {
+        long now = System.currentTimeMillis();
+        if (staleEntry != null && responseData.getStatusCode() == 304) {
+            // The cached response is still valid. Refresh it with the new headers.
+            ResponseData refreshed = copy(staleEntry.responseData, responseData.getRequestId());
+            for (String name : new String[]{"Cache-Control", "Expires", "Date", "ETag"}) {
+                String value = responseData.getHeader(name);
+                if (value != null) {
+                    refreshed.getHeaders().keySet().removeIf(headerName -> headerName.equalsIgnoreCase(name));
+                    refreshed.getHeaders().put(name, List.of(value));
+                }
+            }
+            responseData = refreshed;
+        }
+
+        long freshness = getFreshnessMillis(responseData, now);
+        if (responseData.getStatusCode() == 200 && freshness >= 0 && isVaryCovered(responseData)
+                && responseData.getHeader("Set-Cookie") == null
+                && (freshness > 0 || responseData.getHeader("ETag") != null)) {
+            long expires = freshness > Long.MAX_VALUE - now ? Long.MAX_VALUE : now + freshness;
+            put(key, new Entry(copy(responseData, 0), expires));
+        } else if (staleEntry != null) {
+            remove(key, staleEntry);
+        }
+        return responseData;
+    }
+
+    // Creates a response with the cached data for the given request
+    public static ResponseData createResponse(Entry entry, int requestId) {
+        return copy(entry.responseData, requestId);
+    }
+
+    private void put(String key, Entry entry) {
+        if (entry.size > maxBytes) {
+            return;
+        }
+        lock.lock();
+        try {
+            Entry previous = entries.put(key, entry);
+            if (previous != null) {
+                bytes -= previous.size;
+            }
+            bytes += entry.size;
+            // evict the least recently used entries
+            Iterator<Entry> iterator = entries.values().iterator();
+            while (bytes > maxBytes && iterator.hasNext()) {
+                bytes -= iterator.next().size;
+                iterator.remove();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void remove(String key, Entry entry) {
+        lock.lock();
+        try {
+            if (entries.remove(key, entry)) {
+                bytes -= entry.size;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static ResponseData copy(ResponseData responseData, int requestId) {
+        ResponseData copy = new ResponseData();
+        copy.setRequestId(requestId);
+        copy.setStatusCode(responseData.getStatusCode());
+        Map<String, List<String>> headers = new HashMap<>();
+        for (Map.Entry<String, List<String>> header : responseData.getHeaders().entrySet()) {
+            headers.put(header.getKey(), new ArrayList<>(header.getValue()));
+        }
+        copy.setHeaders(headers);
+        copy.setBody(responseData.getBody());
+        return copy;
+    }
+
+    // Returns true if all headers in the "Vary" header of the response
+    // are part of the key.
+    private boolean isVaryCovered(ResponseData responseData) {
+        String vary = responseData.getHeader("Vary");
+        if (vary == null) {
+            return true;
+        }
+        for (String header : vary.split(",")) {
+            String name = header.trim();
+            if (!name.isEmpty() && varyHeaders.stream().noneMatch(name::equalsIgnoreCase)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Returns the time in milliseconds that the response may be cached,
+    // or -1 if it must not be cached.
+    private static long getFreshnessMillis(ResponseData responseData, long now) {
+        String cacheControl = responseData.getHeader("Cache-Control");
+        if (cacheControl != null) {
+            if (hasDirective(cacheControl, "no-store") || hasDirective(cacheControl, "private")) {
+                return -1;
+            }
+            if (hasDirective(cacheControl, "no-cache")) {
+                return 0;
+            }
+            Long maxAge = getSeconds(cacheControl, "s-maxage");
+            if (maxAge == null) {
+                maxAge = getSeconds(cacheControl, "max-age");
+            }
+            if (maxAge != null) {
+                return Math.min(maxAge, MAX_AGE_SECONDS) * 1000;
+            }
+        }
+        String expires = responseData.getHeader("Expires");
+        if (expires != null) {
+            long date = now;
+            String dateHeader = responseData.getHeader("Date");
+            try {
+                if (dateHeader != null) {
+                    date = parseDate(dateHeader);
+                }
+                return Math.max(0, Math.min(parseDate(expires) - date, MAX_AGE_SECONDS * 1000));
+            } catch (ArithmeticException ex) {
+                // The date is too far in the future for epoch milliseconds.
+                return MAX_AGE_SECONDS * 1000;
+            } catch (DateTimeParseException ex) {
+                // invalid dates mean that the response has already expired
+                return 0;
+            }
+        }
+        return -1;
+    }
+
+    private static long parseDate(String date) {
+        return ZonedDateTime.parse(date.trim(), DateTimeFormatter.RFC_1123_DATE_TIME)
+                .toInstant().toEpochMilli();
+    }
+
+    private static boolean hasDirective(String header, String directive) {
+        if (header == null) {
+            return false;
+        }
+        for (String part : header.split(",")) {
+            String name = part.trim().toLowerCase(Locale.ROOT);
+            int equals = name.indexOf('=');
+            if (equals >= 0) {
+                name = name.substring(0, equals).trim();
+            }
+            if (name.equals(directive)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Long getSeconds(String header, String directive) {
+        for (String part : header.split(",")) {
+            String[] nameValue = part.trim().split("=", 2);
+            if (nameValue.length == 2 && nameValue[0].trim().equalsIgnoreCase(directive)) {
+                String value = nameValue[1].trim().replace("\"", "");
+                try {
+                    return Math.max(0, Long.parseLong(value));
+                } catch (NumberFormatException ex) {
+                    // Too many digits for a long
+                    return value.matches("[0-9]+") ? MAX_AGE_SECONDS : null;
+                }
+            }
+        }
+        return null;
+    }
+
+    public long getBytes() {
+        lock.lock();
+        try {
+            return bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+}
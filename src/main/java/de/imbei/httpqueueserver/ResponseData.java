@@ -4,7 +4,12 @@
  */
 package de.imbei.httpqueueserver;
 
-import java.util.Base64;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -18,20 +23,114 @@ public class ResponseData {
     private int requestId;
     private int statusCode;
     private Map<String, List<String>> headers;
-    private String body; // Base64 encoded content
+    private byte[] body = new byte[0]; // decoded content, Base64 encoded in the JSON
     
     public static ResponseData createTimeoutResponse(int requestId) {
         ResponseData timeoutResponse = new ResponseData();
         timeoutResponse.requestId = requestId;
         timeoutResponse.statusCode = 504; // Gateway timeout
-        timeoutResponse.setBody(Base64.getEncoder()
-                .encodeToString("Timeout while processing request via polling.".getBytes()));
+        timeoutResponse.setBody("Timeout while processing request via polling."
+                .getBytes(StandardCharsets.UTF_8));
         timeoutResponse.headers = new HashMap<>();
         timeoutResponse.headers
                 .put("Content-Type", Collections.singletonList("text/plain; charset=UTF-8"));
         return timeoutResponse;
     }
 
+    /**
+     * Reads a response from its JSON form. The Base64 encoded body is decoded
+     * while it is read, so that only the decoded bytes are kept.
+     * 
+     * @param reader positioned at the beginning of the JSON object
+     * @return the response
+     * @throws IOException if the JSON cannot be read
+     */
+    public static ResponseData readJson(ResponseJsonReader reader) throws IOException {
+        ResponseData responseData = new ResponseData();
+        responseData.headers = new HashMap<>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peekNull()) {
+                reader.nextNull();
+                continue;
+            }
+            switch (name) {
+                case "requestId":
+                    responseData.requestId = reader.nextInt();
+                    break;
+                case "statusCode":
+                    responseData.statusCode = reader.nextInt();
+                    break;
+                case "headers":
+                    readHeaders(reader, responseData.headers);
+                    break;
+                case "body":
+                    responseData.body = reader.nextBase64();
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return responseData;
+    }
+    
+    /**
+     * Reads the next response frame of the binary protocol (see {@link BinaryFrames}).
+     * 
+     * @param in the source
+     * @return the response or null if there are no more frames
+     * @throws IOException if the frame cannot be read
+     */
+    public static ResponseData readBinary(DataInputStream in) throws IOException {
+        DataInputStream header = BinaryFrames.readHeaderBlock(in);
+        if (header == null) {
+            return null;
+        }
+        ResponseData responseData = new ResponseData();
+        responseData.requestId = header.readInt();
+        responseData.statusCode = header.readInt();
+        responseData.headers = BinaryFrames.readHeaders(header);
+        
+        responseData.body = BinaryFrames.readBytes(in, in.readLong());
+        return responseData;
+    }
+    
+    /**
+     * Writes the response as frame of the binary protocol (see {@link BinaryFrames}).
+     * 
+     * @param out the target
+     * @throws IOException if the stream fails
+     */
+    public void writeBinary(DataOutputStream out) throws IOException {
+        ByteArrayOutputStream headerBlock = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(headerBlock);
+        header.writeInt(requestId);
+        header.writeInt(statusCode);
+        BinaryFrames.writeHeaders(header, headers);
+        BinaryFrames.writeHeaderBlock(out, headerBlock);
+        
+        out.writeLong(body.length);
+        out.write(body);
+    }
+    
+    private static void readHeaders(ResponseJsonReader reader, Map<String, List<String>> headers) 
+            throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            List<String> values = new ArrayList<>();
+            reader.beginArray();
+            while (reader.hasNext()) {
+                values.add(reader.nextString());
+            }
+            reader.endArray();
+            headers.put(name, values);
+        }
+        reader.endObject();
+    }
+
     public int getRequestId() {
         return requestId;
     }
@@ -44,15 +143,26 @@ public class ResponseData {
         return headers;
     }
 
+    // Returns the values of the header joined by commas or null if the header
+    // is not set. The name of the header is not case-sensitive.
+    public String getHeader(String name) {
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            if (header.getKey().equalsIgnoreCase(name) && !header.getValue().isEmpty()) {
+                return String.join(", ", header.getValue());
+            }
+        }
+        return null;
+    }
+    
     public void setHeaders(Map<String, List<String>> headers) {
         this.headers = headers;
     }
 
-    public String getBody() {
+    public byte[] getBody() {
         return body;
     }
 
-    public void setBody(String body) {
+    public void setBody(byte[] body) {
         this.body = body;
     }
     
@@ -0,0 +1,342 @@
+package de.imbei.httpqueueserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Reads the JSON that the polling modules send to /response as a stream of tokens.
+ * The methods follow Gson's JsonReader, but a Base64 encoded string can be decoded
+ * while it is read (see {@link #nextBase64()}), so that the encoded body is never
+ * held as a whole. Gson's JsonReader returns each string as a whole, which for
+ * a large body keeps the encoded text in memory next to the decoded bytes.
+ *
+ * Like with JsonReader, the elements of objects and arrays are read in a loop
+ * with {@link #hasNext()}, which also consumes the commas between them.
+ */
+public class ResponseJsonReader {
+
+    private final Reader in;
+    private final char[] buffer = new char[8192];
+    private int position = 0;
+    private int limit = 0;
+    // For each open object or array: whether an element has been read,
+    // so that a comma has to follow before the next element
+    private boolean[] needsComma = new boolean[8];
+    private int depth = 0;
+
+    public ResponseJsonReader(Reader in) {
+        this.in = in;
+    }
+
+    // Returns true if the next value is an array.
+    public boolean isArray() throws IOException {
+        return peekToken() == '[';
+    }
+
+    public void beginObject() throws IOException {
+        expect('{');
+        push();
+    }
+
+    public void endObject() throws IOException {
+        expect('}');
+        pop();
+    }
+
+    public void beginArray() throws IOException {
+        expect('[');
+        push();
+    }
+
+    public void endArray() throws IOException {
+        expect(']');
+        pop();
+    }
+
+    // Returns true if the current object or array has another element.
+    public boolean hasNext() throws IOException {
+        int c = peekToken();
+        if (needsComma[depth]) {
+            if (c == '}' || c == ']') {
+                return false;
+            }
+            if (c != ',') {
+                throw syntaxError("Expected ','");
+            }
+            position++;
+            needsComma[depth] = false;
+            c = peekToken();
+        }
+        return c != '}' && c != ']' && c != -1;
+    }
+
+    public String nextName() throws IOException {
+        String name = readString();
+        expect(':');
+        return name;
+    }
+
+    public boolean peekNull() throws IOException {
+        return peekToken() == 'n';
+    }
+
+    public void nextNull() throws IOException {
+        readLiteral("null");
+        valueRead();
+    }
+
+    public String nextString() throws IOException {
+        String value = readString();
+        valueRead();
+        return value;
+    }
+
+    // Reads a number or a string that contains a number.
+    public int nextInt() throws IOException {
+        String value;
+        if (peekToken() == '"') {
+            value = readString();
+        } else {
+            value = readNumber();
+        }
+        valueRead();
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException ex) {
+            double number = Double.parseDouble(value);
+            if ((int) number != number) {
+                throw new NumberFormatException("Expected an int but was " + value);
+            }
+            return (int) number;
+        }
+    }
+
+    /**
+     * Reads a Base64 encoded string and decodes it while reading.
+     *
+     * @return the decoded bytes
+     * @throws IOException if the JSON cannot be read or the string is not valid Base64
+     */
+    public byte[] nextBase64() throws IOException {
+        expect('"');
+        // The characters of the string up to the closing quote
+        InputStream encoded = new InputStream() {
+            private boolean ended = false;
+
+            @Override
+            public int read() throws IOException {
+                if (ended) {
+                    return -1;
+                }
+                int c = readStringChar();
+                if (c == -1) {
+                    ended = true;
+                } else if (c > 127) {
+                    throw syntaxError("Invalid Base64 string");
+                }
+                return c;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = 0;
+                int c;
+                while (n < len && (c = read()) != -1) {
+                    b[off + n++] = (byte) c;
+                }
+                return n == 0 && len > 0 ? -1 : n;
+            }
+        };
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        try (InputStream decoder = Base64.getDecoder().wrap(encoded)) {
+            decoder.transferTo(decoded);
+        }
+        if (encoded.read() != -1) {
+            throw syntaxError("Invalid Base64 string");
+        }
+        valueRead();
+        return decoded.toByteArray();
+    }
+
+    public void skipValue() throws IOException {
+        switch (peekToken()) {
+            case '{':
+                beginObject();
+                while (hasNext()) {
+                    nextName();
+                    skipValue();
+                }
+                endObject();
+                break;
+            case '[':
+                beginArray();
+                while (hasNext()) {
+                    skipValue();
+                }
+                endArray();
+                break;
+            case '"':
+                expect('"');
+                while (readStringChar() != -1) {
+                    // skip the characters of the string
+                }
+                valueRead();
+                break;
+            case 't':
+                readLiteral("true");
+                valueRead();
+                break;
+            case 'f':
+                readLiteral("false");
+                valueRead();
+                break;
+            case 'n':
+                nextNull();
+                break;
+            default:
+                readNumber();
+                valueRead();
+        }
+    }
+
+    private void push() {
+        depth++;
+        if (depth == needsComma.length) {
+            needsComma = Arrays.copyOf(needsComma, depth * 2);
+        }
+        needsComma[depth] = false;
+    }
+
+    private void pop() {
+        depth--;
+        valueRead();
+    }
+
+    // Marks that an element of the current object or array has been read.
+    private void valueRead() {
+        needsComma[depth] = true;
+    }
+
+    private String readString() throws IOException {
+        expect('"');
+        StringBuilder value = new StringBuilder();
+        int c;
+        while ((c = readStringChar()) != -1) {
+            value.append((char) c);
+        }
+        return value.toString();
+    }
+
+    // Reads the next character of a string whose opening quote has been read,
+    // resolving escape sequences. Returns -1 after the closing quote.
+    private int readStringChar() throws IOException {
+        int c = read();
+        switch (c) {
+            case -1:
+                throw syntaxError("Unterminated string");
+            case '"':
+                return -1;
+            case '\\':
+                break;
+            default:
+                return c;
+        }
+        c = read();
+        switch (c) {
+            case 'b':
+                return '\b';
+            case 'f':
+                return '\f';
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 't':
+                return '\t';
+            case 'u':
+                int value = 0;
+                for (int i = 0; i < 4; i++) {
+                    int digit = Character.digit(read(), 16);
+                    if (digit < 0) {
+                        throw syntaxError("Invalid escape sequence");
+                    }
+                    value = value * 16 + digit;
+                }
+                return value;
+            case '"':
+            case '\\':
+            case '/':
+                return c;
+            default:
+                throw syntaxError("Invalid escape sequence");
+        }
+    }
+
+    private String readNumber() throws IOException {
+        StringBuilder value = new StringBuilder();
+        int c;
+        while ((c = peek()) != -1 && (c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E'
+                || (c >= '0' && c <= '9'))) {
+            value.append((char) c);
+            position++;
+        }
+        if (value.length() == 0) {
+            throw syntaxError("Expected a value");
+        }
+        return value.toString();
+    }
+
+    private void readLiteral(String literal) throws IOException {
+        peekToken();
+        for (int i = 0; i < literal.length(); i++) {
+            if (read() != literal.charAt(i)) {
+                throw syntaxError("Expected " + literal);
+            }
+        }
+    }
+
+    private void expect(char expected) throws IOException {
+        if (peekToken() != expected) {
+            throw syntaxError("Expected '" + expected + "'");
+        }
+        position++;
+    }
+
+    // Skips whitespace and returns the next character without consuming it.
+    private int peekToken() throws IOException {
+        int c;
+        while ((c = peek()) == ' ' || c == '\t' || c == '\n' || c == '\r') {
+            position++;
+        }
+        return c;
+    }
+
+    private int peek() throws IOException {
+        if (position == limit) {
+            limit = in.read(buffer);
+            position = 0;
+            if (limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+        return buffer[position];
+    }
+
+    private int read() throws IOException {
+        int c = peek();
+        if (c != -1) {
+            position++;
+        }
+        return c;
+    }
+
+    private IOException syntaxError(String message) {
+        return new IOException(message + " in JSON");
+    }
+
+}
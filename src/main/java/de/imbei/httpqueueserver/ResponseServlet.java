@@ -1,7 +1,12 @@
 package de.imbei.httpqueueserver;
 
-import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -9,19 +14,142 @@ import javax.servlet.http.HttpServletResponse;
 
 /**
  * The /response endpoint accepts the answers for requests.
+ * The body may either contain a single response as JSON object or
+ * multiple responses as JSON array.
+ * For an array, the endpoint answers with a JSON object that lists the IDs
+ * of the requests whose responses have been "delivered" and the IDs
+ * of the requests whose responses have been "discarded" because
+ * the requests have already expired.
+ * A single response that is discarded is answered with 409 (Conflict).
+ * The JSON is parsed as a stream and each response is registered
+ * as soon as it has been read. The Base64 encoded bodies are decoded
+ * while they are read (see {@link ResponseJsonReader}).
+ * If the "Content-Type" is the media type of the binary protocol 
+ * (see {@link BinaryFrames}), the body may contain one or more response frames.
+ * These are always answered with the list of delivered and discarded IDs.
+ * If the "Content-Type" is the media type for chunk frames, the responses are
+ * streamed to the clients while they are uploaded. A response counts as 
+ * delivered when its end frame has been written to a client.
  */
 public class ResponseServlet extends HttpServlet {
 
     private final RequestManager requestManager = RequestManager.getInstance();
-    
+
     @Override
     protected void doPost(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {
+
+        if (BinaryFrames.isChunked(request.getContentType())) {
+            registerChunks(request, response);
+            return;
+        }
+        if (BinaryFrames.isBinary(request.getContentType())) {
+            registerFrames(request, response);
+            return;
+        }
         
-        String requestBody = RequestData.extractBody(request);
-        Gson gson = new Gson();
-        ResponseData responseData = gson.fromJson(requestBody, ResponseData.class);
-        requestManager.registerResponse(responseData);
+        if (request.getCharacterEncoding() == null) {
+            request.setCharacterEncoding("UTF-8");
+        }
+        ResponseJsonReader reader = new ResponseJsonReader(request.getReader());
+        if (!reader.isArray()) {
+            ResponseData responseData = ResponseData.readJson(reader);
+            if (!requestManager.registerResponse(responseData)) {
+                // The request has already been answered or has expired.
+                response.sendError(HttpServletResponse.SC_CONFLICT, 
+                        "Response for request " + responseData.getRequestId() + " discarded");
+            }
+            return;
+        }
+
+        List<Integer> delivered = new ArrayList<>();
+        List<Integer> discarded = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            ResponseData responseData = ResponseData.readJson(reader);
+            if (requestManager.registerResponse(responseData)) {
+                delivered.add(responseData.getRequestId());
+            } else {
+                discarded.add(responseData.getRequestId());
+            }
+        }
+        reader.endArray();
+        writeResult(response, delivered, discarded);
+    }
+    
+    private void registerFrames(HttpServletRequest request, HttpServletResponse response) 
+            throws IOException {
+        List<Integer> delivered = new ArrayList<>();
+        List<Integer> discarded = new ArrayList<>();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(request.getInputStream()));
+        ResponseData responseData;
+        while ((responseData = ResponseData.readBinary(in)) != null) {
+            if (requestManager.registerResponse(responseData)) {
+                delivered.add(responseData.getRequestId());
+            } else {
+                discarded.add(responseData.getRequestId());
+            }
+        }
+        writeResult(response, delivered, discarded);
+    }
+    
+    private void registerChunks(HttpServletRequest request, HttpServletResponse response) 
+            throws IOException {
+        List<Integer> delivered = new ArrayList<>();
+        List<Integer> discarded = new ArrayList<>();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(request.getInputStream()));
+        int type;
+        while ((type = in.read()) != -1) {
+            int requestId = in.readInt();
+            switch (type) {
+                case BinaryFrames.CHUNK_HEAD:
+                    int statusCode = in.readInt();
+                    Map<String, List<String>> headers = BinaryFrames.readHeaders(in);
+                    if (!requestManager.startResponseStream(requestId, statusCode, headers)) {
+                        discarded.add(requestId);
+                    }
+                    break;
+                case BinaryFrames.CHUNK_DATA:
+                    requestManager.writeResponseChunk(requestId, in, in.readInt());
+                    break;
+                case BinaryFrames.CHUNK_END:
+                    if (requestManager.endResponseStream(requestId)) {
+                        delivered.add(requestId);
+                    } else if (!discarded.contains(requestId)) {
+                        discarded.add(requestId);
+                    }
+                    break;
+                case BinaryFrames.CHUNK_ABORT:
+                    requestManager.abortResponseStream(requestId);
+                    break;
+                default:
+                    response.sendError(HttpServletResponse.SC_BAD_REQUEST, 
+                            "Unknown type of chunk frame: " + type);
+                    return;
+            }
+        }
+        writeResult(response, delivered, discarded);
+    }
+    
+    private static void writeResult(HttpServletResponse response, List<Integer> delivered, 
+            List<Integer> discarded) throws IOException {
+        response.setContentType("application/json");
+        JsonWriter writer = new JsonWriter(response.getWriter());
+        writer.beginObject();
+        writer.name("delivered");
+        writeIds(writer, delivered);
+        writer.name("discarded");
+        writeIds(writer, discarded);
+        writer.endObject();
+        writer.flush();
+    }
+
+    private static void writeIds(JsonWriter writer, List<Integer> requestIds) throws IOException {
+        writer.beginArray();
+        for (int requestId : requestIds) {
+            writer.value(requestId);
+        }
+        writer.endArray();
     }
 
 
@@ -0,0 +1,440 @@
+package de.imbei.httpqueueserver;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A response that is forwarded to the waiting clients in chunks while the
+ * polling module uploads it (see {@link BinaryFrames}).
+ * The thread of the upload never writes to the clients itself. Each client has
+ * a small buffer, which is written to the client by a thread of its own request:
+ * by a container thread if the client waits asynchronously, otherwise by the
+ * thread that waits for the response. If a client reads slowly, the upload waits
+ * until there is room in the buffer of the client again, but at most for the
+ * write timeout. A client that falls behind for longer is dropped and its
+ * connection is closed, so that it does not stall the upload for the other clients.
+ */
+public class ResponseStream {
+
+    /**
+     * Is notified when the response to a client has been completed or aborted.
+     */
+    public interface DeliveryListener {
+        void delivered(PendingResponse client, int statusCode, long bodyBytes,
+                long writeStartNanos, boolean failed);
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ResponseStream.class.getName());
+
+    // Set on requests whose response stream has been aborted
+    public static final String ABORTED_ATTRIBUTE = ResponseStream.class.getName() + ".aborted";
+
+    // Size of the pieces in which the body is read from the upload
+    private static final int PIECE_SIZE = 8192;
+    // Bytes that are buffered for each client before the upload waits for it
+    private static final int CLIENT_BUFFER_BYTES = 256 * 1024;
+
+    private final int requestId;
+    private final long writeTimeoutNanos;
+    private final DeliveryListener deliveryListener;
+    // The clients that still receive the response, guarded by the lock
+    private final List<Client> clients = new ArrayList<>();
+    // Set before the clients are started
+    private int statusCode;
+    private Map<String, List<String>> headers = Map.of();
+    private long writeStartNanos = System.nanoTime();
+    private final Lock lock = new ReentrantLock();
+    // Chunks of different uploads are read one after the other.
+    private final Lock uploadLock = new ReentrantLock();
+    // epoch milliseconds
+    private volatile long lastActivity = System.currentTimeMillis();
+    // Aborts the stream if the polling module does not send more data
+    private volatile DeadlineScheduler.Timeout idleCheck;
+
+    public ResponseStream(int requestId, List<PendingResponse> clients, long writeTimeoutMillis,
+            DeliveryListener deliveryListener) {
+        this.requestId = requestId;
+        this.writeTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(writeTimeoutMillis);
+        this.deliveryListener = deliveryListener;
+        for (PendingResponse client : clients) {
+            this.clients.add(new Client(client));
+        }
+    }
+
+    public int getRequestId() {
+        return requestId;
+    }
+
+    public long getLastActivity() {
+        return lastActivity;
+    }
+
+    // Sends the status and the headers to the clients.
+    public void start(int statusCode, Map<String, List<String>> headers) {
+        List<Client> receivers;
+        lock.lock();
+        try {
+            this.statusCode = statusCode;
+            this.headers = headers;
+            writeStartNanos = System.nanoTime();
+            receivers = new ArrayList<>(clients);
+        } finally {
+            lock.unlock();
+        }
+        for (Client client : receivers) {
+            client.start();
+        }
+    }
+
+    /**
+     * Copies the next chunk of the body into the buffers of the clients.
+     *
+     * @param in the upload of the polling module
+     * @param length the size of the chunk
+     * @throws IOException if the chunk cannot be read from the upload
+     */
+    public void write(InputStream in, long length) throws IOException {
+        uploadLock.lock();
+        try {
+            long remaining = length;
+            while (remaining > 0) {
+                // The upload is read without holding the lock,
+                // so that the stream can be aborted in the meantime.
+                byte[] piece = in.readNBytes((int) Math.min(PIECE_SIZE, remaining));
+                if (piece.length < Math.min(PIECE_SIZE, remaining)) {
+                    throw new EOFException("Chunk ended after " + (length - remaining + piece.length)
+                            + " of " + length + " bytes");
+                }
+                lastActivity = System.currentTimeMillis();
+                long deadline = System.nanoTime() + writeTimeoutNanos;
+                for (Client client : getClients()) {
+                    if (!client.offer(piece, deadline)) {
+                        LOGGER.log(Level.FINE, "Dropping client of request {0}, which has not "
+                                + "read the response stream for {1} ms", new Object[]{requestId,
+                                    TimeUnit.NANOSECONDS.toMillis(writeTimeoutNanos)});
+                        client.abort();
+                    }
+                }
+                remaining -= piece.length;
+                lastActivity = System.currentTimeMillis();
+            }
+        } finally {
+            uploadLock.unlock();
+        }
+    }
+
+    // Completes the responses to the clients after the buffered data has been written.
+    // Returns false if no client is left to receive the complete response.
+    public boolean end() {
+        cancelIdleCheck();
+        List<Client> receivers = getClients();
+        for (Client client : receivers) {
+            client.end();
+        }
+        return !receivers.isEmpty();
+    }
+
+    // Breaks off the responses to the clients. The status and the headers
+    // have already been sent, so the connections are closed to show the
+    // clients that the responses are incomplete.
+    // A client that is blocked in a write is ended when the write fails or returns.
+    public void abort() {
+        cancelIdleCheck();
+        for (Client client : getClients()) {
+            client.abort();
+        }
+    }
+
+    private List<Client> getClients() {
+        lock.lock();
+        try {
+            return new ArrayList<>(clients);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void removeClient(Client client) {
+        lock.lock();
+        try {
+            clients.remove(client);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void setIdleCheck(DeadlineScheduler.Timeout idleCheck) {
+        this.idleCheck = idleCheck;
+    }
+
+    private void cancelIdleCheck() {
+        DeadlineScheduler.Timeout timeout = idleCheck;
+        if (timeout != null) {
+            timeout.cancel();
+        }
+    }
+
+    /**
+     * The part of the stream that belongs to one client.
+     */
+    public final class Client {
+
+        private final PendingResponse pendingResponse;
+        // The pieces of the body that have not been written to the client yet
+        private final ArrayDeque<byte[]> pieces = new ArrayDeque<>();
+        private long bufferedBytes = 0;
+        private long writtenBytes = 0;
+        private boolean ended = false;
+        private boolean aborted = false;
+        // Set when the delivery has been recorded
+        private boolean finished = false;
+        // Set while a container thread writes to an asynchronous client
+        private boolean writing = false;
+        // Only accessed by the thread that writes
+        private boolean headersSent = false;
+        private final Lock clientLock = new ReentrantLock();
+        private final Condition changed = clientLock.newCondition();
+
+        private Client(PendingResponse pendingResponse) {
+            this.pendingResponse = pendingResponse;
+        }
+
+        private void start() {
+            if (pendingResponse.getAsyncContext() != null) {
+                clientLock.lock();
+                try {
+                    startWriter();
+                } finally {
+                    clientLock.unlock();
+                }
+            } else if (!pendingResponse.handOverStream(this)) {
+                // The thread does not wait for the response any more.
+                finish(true);
+            }
+        }
+
+        // Adds a piece of the body. If the buffer is full, waits until the client
+        // has made room for it. Returns false if this has not happened before the deadline.
+        private boolean offer(byte[] piece, long deadline) throws InterruptedIOException {
+            clientLock.lock();
+            try {
+                while (!aborted && bufferedBytes > 0
+                        && bufferedBytes + piece.length > CLIENT_BUFFER_BYTES) {
+                    long timeout = deadline - System.nanoTime();
+                    if (timeout <= 0) {
+                        return false;
+                    }
+                    changed.awaitNanos(timeout);
+                }
+                if (!aborted) {
+                    pieces.add(piece);
+                    bufferedBytes += piece.length;
+                    changed.signalAll();
+                    startWriter();
+                }
+                return true;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the client of request "
+                        + requestId);
+            } finally {
+                clientLock.unlock();
+            }
+        }
+
+        private void end() {
+            clientLock.lock();
+            try {
+                ended = true;
+                changed.signalAll();
+                startWriter();
+            } finally {
+                clientLock.unlock();
+            }
+        }
+
+        private void abort() {
+            boolean finishNow;
+            clientLock.lock();
+            try {
+                aborted = true;
+                pieces.clear();
+                bufferedBytes = 0;
+                changed.signalAll();
+                // Otherwise, the thread that writes ends the response.
+                finishNow = pendingResponse.getAsyncContext() != null && !writing;
+            } finally {
+                clientLock.unlock();
+            }
+            if (finishNow) {
+                finish(true);
+            }
+        }
+
+        // Called by the thread that has waited for the response if it has left
+        // before writing the stream, e.g., because it has been interrupted.
+        void abandon() {
+            abort();
+            finish(true);
+        }
+
+        // Starts a container thread that writes the buffered pieces
+        // to an asynchronous client. Must be called while holding the client lock.
+        private void startWriter() {
+            AsyncContext asyncContext = pendingResponse.getAsyncContext();
+            if (asyncContext != null && !writing && !finished) {
+                writing = true;
+                asyncContext.start(this::writeAsync);
+            }
+        }
+
+        private void writeAsync() {
+            boolean failed = false;
+            try {
+                if (!writePieces(pendingResponse.getResponse(), false)) {
+                    // The buffer is empty. The next piece starts a new writer.
+                    return;
+                }
+            } catch (IOException ex) {
+                LOGGER.log(Level.FINE, "Could not stream response for request " + requestId
+                        + " to client", ex);
+                failed = true;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                failed = true;
+            }
+            finish(failed);
+        }
+
+        /**
+         * Writes the response to a client that waits synchronously.
+         * Must be called by the thread that has waited for the response,
+         * so that the response is not used after this thread has returned it
+         * to the container.
+         *
+         * @param response the response to the client
+         * @throws IOException if the stream has been aborted or the client is gone
+         * @throws InterruptedException if the thread has been interrupted
+         */
+        public void writeTo(HttpServletResponse response) throws IOException, InterruptedException {
+            try {
+                writePieces(response, true);
+            } catch (IOException | InterruptedException ex) {
+                finish(true);
+                throw ex;
+            }
+            finish(false);
+        }
+
+        // Writes the buffered pieces to the client. If wait is set, waits for
+        // further pieces until the stream has ended. Returns true if the complete
+        // response has been written and false if the buffer is empty and wait is not set.
+        private boolean writePieces(HttpServletResponse response, boolean wait)
+                throws IOException, InterruptedException {
+            if (!headersSent) {
+                response.setStatus(statusCode);
+                for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+                    for (String value : header.getValue()) {
+                        response.addHeader(header.getKey(), value);
+                    }
+                }
+                headersSent = true;
+                response.flushBuffer();
+            }
+            boolean flushed = true;
+            while (true) {
+                byte[] piece;
+                clientLock.lock();
+                try {
+                    piece = pieces.poll();
+                    while (piece == null && flushed) {
+                        if (aborted) {
+                            throw new IOException("The response stream for request "
+                                    + requestId + " has been aborted");
+                        }
+                        if (ended) {
+                            return true;
+                        }
+                        if (!wait) {
+                            writing = false;
+                            return false;
+                        }
+                        changed.await();
+                        piece = pieces.poll();
+                    }
+                    if (aborted) {
+                        throw new IOException("The response stream for request "
+                                + requestId + " has been aborted");
+                    }
+                } finally {
+                    clientLock.unlock();
+                }
+                if (piece == null) {
+                    // The client has received everything so far.
+                    response.flushBuffer();
+                    flushed = true;
+                    continue;
+                }
+                response.getOutputStream().write(piece);
+                flushed = false;
+                clientLock.lock();
+                try {
+                    bufferedBytes -= piece.length;
+                    writtenBytes += piece.length;
+                    changed.signalAll();
+                } finally {
+                    clientLock.unlock();
+                }
+            }
+        }
+
+        // Ends the request of the client and records the delivery.
+        private void finish(boolean failed) {
+            long bodyBytes;
+            clientLock.lock();
+            try {
+                if (finished) {
+                    return;
+                }
+                finished = true;
+                aborted |= failed;
+                pieces.clear();
+                bufferedBytes = 0;
+                changed.signalAll();
+                bodyBytes = writtenBytes;
+            } finally {
+                clientLock.unlock();
+            }
+            removeClient(this);
+            deliveryListener.delivered(pendingResponse, statusCode, bodyBytes, writeStartNanos, failed);
+            AsyncContext asyncContext = pendingResponse.getAsyncContext();
+            if (asyncContext == null) {
+                // The thread that waits for the response returns by itself.
+                return;
+            }
+            if (failed) {
+                // The request is dispatched back to the container thread,
+                // which fails it, so that the connection is closed.
+                asyncContext.getRequest().setAttribute(ABORTED_ATTRIBUTE, Boolean.TRUE);
+                asyncContext.dispatch();
+            } else {
+                asyncContext.complete();
+            }
+        }
+    }
+
+}
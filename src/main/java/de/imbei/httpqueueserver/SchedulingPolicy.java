@@ -0,0 +1,119 @@
+package de.imbei.httpqueueserver;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Configures the order in which the requests of each queue are popped.
+ * By default, the requests are popped in the order of their arrival.
+ * With a fair policy, the requests are popped by priority and the requests of
+ * the same priority are shared between the clients (see {@link FairScheduler}).
+ * The priority of a request is taken from a header or from the first rule whose
+ * prefix matches the URI of the request. The client of a request is identified
+ * by the value of a header, e.g., an API key or the address of the client
+ * as set by the reverse proxy.
+ */
+public class SchedulingPolicy {
+
+    private final boolean fair;
+    private final int priorityLevels;
+    private final int defaultPriority;
+    private final String priorityHeader;
+    // URI prefix -> priority, checked in the order of the map
+    private final Map<String, Integer> priorityRules;
+    private final String clientKeyHeader;
+    // client key -> weight, the default weight is 1
+    private final Map<String, Integer> clientWeights;
+    private final long starvationNanos;
+
+    /**
+     * Creates a fair policy.
+     *
+     * @param priorityLevels number of priority classes, 0 is the highest priority
+     * @param defaultPriority priority of requests without a matching header or rule
+     * @param priorityHeader header that contains the priority, may be null
+     * @param priorityRules maps prefixes of the URI to priorities
+     * @param clientKeyHeader header that identifies the client, may be null
+     * @param clientWeights maps client keys to weights
+     * @param starvationMillis time after which a request is popped regardless
+     * of its priority
+     */
+    public SchedulingPolicy(int priorityLevels, int defaultPriority, String priorityHeader,
+            Map<String, Integer> priorityRules, String clientKeyHeader,
+            Map<String, Integer> clientWeights, long starvationMillis) {
+        this.fair = true;
+        this.priorityLevels = Math.max(1, priorityLevels);
+        this.defaultPriority = clamp(defaultPriority);
+        this.priorityHeader = priorityHeader;
+        this.priorityRules = priorityRules;
+        this.clientKeyHeader = clientKeyHeader;
+        this.clientWeights = clientWeights;
+        this.starvationNanos = TimeUnit.MILLISECONDS.toNanos(starvationMillis);
+    }
+
+    private SchedulingPolicy() {
+        this.fair = false;
+        this.priorityLevels = 1;
+        this.defaultPriority = 0;
+        this.priorityHeader = null;
+        this.priorityRules = Map.of();
+        this.clientKeyHeader = null;
+        this.clientWeights = Map.of();
+        this.starvationNanos = 0;
+    }
+
+    public static SchedulingPolicy fifo() {
+        return new SchedulingPolicy();
+    }
+
+    public RequestScheduler newScheduler() {
+        return fair ? new FairScheduler(this) : new FifoScheduler();
+    }
+
+    public int getPriority(RequestData requestData) {
+        if (!fair) {
+            return 0;
+        }
+        if (priorityHeader != null) {
+            String value = requestData.getHeader(priorityHeader);
+            if (value != null) {
+                try {
+                    return clamp(Integer.parseInt(value.trim()));
+                } catch (NumberFormatException ex) {
+                    // use the rules instead
+                }
+            }
+        }
+        for (Map.Entry<String, Integer> rule : priorityRules.entrySet()) {
+            if (requestData.getUri().startsWith(rule.getKey())) {
+                return clamp(rule.getValue());
+            }
+        }
+        return defaultPriority;
+    }
+
+    public String getClientKey(RequestData requestData) {
+        if (!fair || clientKeyHeader == null) {
+            return "";
+        }
+        String value = requestData.getHeader(clientKeyHeader);
+        return value == null ? "" : value;
+    }
+
+    public int getWeight(String clientKey) {
+        return Math.max(1, clientWeights.getOrDefault(clientKey, 1));
+    }
+
+    private int clamp(int priority) {
+        return Math.max(0, Math.min(priorityLevels - 1, priority));
+    }
+
+    public int getPriorityLevels() {
+        return priorityLevels;
+    }
+
+    public long getStarvationNanos() {
+        return starvationNanos;
+    }
+
+}
@@ -0,0 +1,86 @@
+package de.imbei.httpqueueserver;
+
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * The /status endpoint shows the current usage of the queue as JSON.
+ * It can be used to set up alerts before new requests are rejected.
+ */
+public class StatusServlet extends HttpServlet {
+
+    private final RequestManager requestManager = RequestManager.getInstance();
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+
+        AdmissionControl admissionControl = requestManager.getAdmissionControl();
+        response.setContentType("application/json");
+        JsonWriter writer = new JsonWriter(response.getWriter());
+        writer.setIndent("  ");
+        writer.beginObject();
+        writer.name("queuedRequests").value(requestManager.getQueuedRequests());
+        writer.name("queuedBodyBytes").value(requestManager.getQueuedBodyBytes());
+        writer.name("pendingResponses").value(requestManager.getPendingResponses());
+        writer.name("pendingResponseBytes").value(requestManager.getPendingResponseBytes());
+        writer.name("heldBytes").value(requestManager.getHeldBytes());
+        writer.name("responseStreams").value(requestManager.getResponseStreams());
+        writer.name("redeliveredRequests").value(requestManager.getRedeliveredRequests());
+        writer.name("rejecting").value(admissionControl.isRejecting());
+        writer.name("rejectedRequests").value(admissionControl.getRejectedRequests());
+        writer.name("highWatermarkBytes").value(admissionControl.getHighWatermarkBytes());
+        writer.name("lowWatermarkBytes").value(admissionControl.getLowWatermarkBytes());
+        writer.name("highWatermarkRequests").value(admissionControl.getHighWatermarkRequests());
+        writer.name("lowWatermarkRequests").value(admissionControl.getLowWatermarkRequests());
+        RequestCoalescing coalescing = requestManager.getCoalescing();
+        if (coalescing != null) {
+            writer.name("coalescableRequests").value(coalescing.size());
+        }
+        ResponseCache responseCache = requestManager.getResponseCache();
+        if (responseCache != null) {
+            writer.name("responseCache");
+            writer.beginObject();
+            writer.name("entries").value(responseCache.size());
+            writer.name("bytes").value(responseCache.getBytes());
+            writer.name("hits").value(responseCache.getHits());
+            writer.name("misses").value(responseCache.getMisses());
+            writer.endObject();
+        }
+        BodyArena bodyArena = requestManager.getBodyArena();
+        if (bodyArena != null) {
+            writer.name("bodyArena");
+            writer.beginObject();
+            writer.name("capacityBytes").value(bodyArena.getCapacity());
+            writer.name("allocatedBytes").value(bodyArena.getAllocatedBytes());
+            writer.name("usedBytes").value(bodyArena.getUsedBytes());
+            writer.name("bodyBytes").value(bodyArena.getBodyBytes());
+            writer.name("allocations").value(bodyArena.getAllocations());
+            writer.name("heapFallbacks").value(bodyArena.getHeapFallbacks());
+            writer.endObject();
+        }
+        writer.name("queues");
+        writer.beginArray();
+        for (RequestQueue queue : requestManager.getQueues()) {
+            writer.beginObject();
+            writer.name("name").value(queue.getName());
+            writer.name("queuedRequests").value(queue.size());
+            writer.name("queuedBodyBytes").value(queue.getBodyBytes());
+            writer.endObject();
+        }
+        writer.endArray();
+        writer.endObject();
+        writer.flush();
+    }
+
+
+    @Override
+    public String getServletInfo() {
+        return "Shows the current usage of the queue";
+    }
+
+}
@@ -0,0 +1,46 @@
+package de.imbei.httpqueueserver;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Checks the watermarks of the admission control.
+ */
+public class AdmissionControlTest {
+
+    @Test
+    public void rejectsUntilBelowLowWatermark() {
+        AdmissionControl admissionControl = new AdmissionControl(1000, 800, 10, 8);
+
+        assertTrue(admissionControl.admit(500, 0, 100));
+        assertFalse(admissionControl.admit(1000, 0, 0));
+        assertTrue(admissionControl.isRejecting());
+        assertFalse(admissionControl.admit(900, 0, 0));
+        assertTrue(admissionControl.admit(800, 0, 0));
+        assertFalse(admissionControl.admit(0, 10, 0));
+        assertTrue(admissionControl.admit(0, 8, 0));
+    }
+
+    @Test
+    public void rejectsBodyThatExceedsHighWatermark() {
+        AdmissionControl admissionControl = new AdmissionControl(1000, 800, 0, 0);
+
+        assertFalse(admissionControl.admit(500, 0, 501));
+        assertFalse(admissionControl.isRejecting());
+        assertTrue(admissionControl.admit(500, 0, 500));
+    }
+
+    @Test
+    public void acceptsBodyOfUnknownSizeOnlyBelowLowWatermark() {
+        AdmissionControl admissionControl = new AdmissionControl(1000, 800, 0, 0);
+
+        assertTrue(admissionControl.admit(800, 0, -1));
+        assertFalse(admissionControl.admit(801, 0, -1));
+        assertTrue(admissionControl.admit(801, 0, 100));
+        // Without a byte limit, the size does not matter.
+        assertTrue(AdmissionControl.unlimited().admit(Long.MAX_VALUE / 2, 0, -1));
+    }
+
+}
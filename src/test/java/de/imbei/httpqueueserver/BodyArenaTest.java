@@ -0,0 +1,120 @@
+package de.imbei.httpqueueserver;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import org.junit.Test;
+
+/**
+ * Checks the size classes, the reuse of released buffers and the capacity of the arena.
+ */
+public class BodyArenaTest {
+
+    @Test
+    public void bodyIsRoundedUpToSizeClass() {
+        BodyArena arena = new BodyArena(4096);
+        ByteBuffer small = arena.allocate(1);
+        ByteBuffer large = arena.allocate(1025);
+
+        assertEquals(256, small.capacity());
+        assertEquals(1, small.limit());
+        assertEquals(2048, large.capacity());
+        assertEquals(1025, large.limit());
+        assertEquals(256 + 2048, arena.getUsedBytes());
+        assertEquals(1 + 1025, arena.getBodyBytes());
+    }
+
+    @Test
+    public void releasedBufferIsReused() {
+        BodyArena arena = new BodyArena(4096);
+        ByteBuffer buffer = arena.allocate(300);
+        arena.release(buffer);
+        assertEquals(0, arena.getUsedBytes());
+        assertEquals(512, arena.getAllocatedBytes());
+        assertEquals(0, arena.getBodyBytes());
+
+        ByteBuffer reused = arena.allocate(500);
+        assertSame(buffer, reused);
+        assertEquals(0, reused.position());
+        assertEquals(500, reused.limit());
+        assertEquals(1, arena.getAllocations());
+    }
+
+    @Test
+    public void bodyThatDoesNotFitIsRejected() {
+        BodyArena arena = new BodyArena(1024);
+        assertNotNull(arena.allocate(1024));
+
+        assertNull(arena.allocate(1));
+        assertNull(new BodyArena(Long.MAX_VALUE).allocate((1L << 30) + 1));
+        assertEquals(1, arena.getHeapFallbacks());
+    }
+
+    @Test
+    public void releasedBuffersAreDroppedToMakeRoom() {
+        BodyArena arena = new BodyArena(1024);
+        arena.release(arena.allocate(256));
+        arena.release(arena.allocate(512));
+        assertEquals(768, arena.getAllocatedBytes());
+
+        // Both released buffers are too small and have to be dropped.
+        ByteBuffer large = arena.allocate(1000);
+        assertNotNull(large);
+        assertEquals(1024, large.capacity());
+        assertEquals(1024, arena.getAllocatedBytes());
+        assertEquals(1024, arena.getUsedBytes());
+        assertEquals(3, arena.getAllocations());
+    }
+
+    @Test
+    public void bufferInUseIsNotDropped() {
+        BodyArena arena = new BodyArena(1024);
+        ByteBuffer used = arena.allocate(256);
+        arena.release(arena.allocate(512));
+
+        // The released buffer is dropped, but the buffer in use leaves no room.
+        assertNull(arena.allocate(1000));
+        assertEquals(256, arena.getAllocatedBytes());
+        assertEquals(256, arena.getUsedBytes());
+        arena.release(used);
+        assertEquals(0, arena.getUsedBytes());
+    }
+
+    @Test
+    public void requestBodyReturnsBufferWhenReleased() throws IOException {
+        BodyArena arena = new BodyArena(4096);
+        byte[] data = {1, 2, 3, 4};
+        RequestBody body = RequestBody.read(new ByteArrayInputStream(data), 1024, arena);
+        assertEquals(4, arena.getBodyBytes());
+
+        body.retain();
+        body.release();
+        try (InputStream in = body.openStream()) {
+            assertArrayEquals(data, in.readAllBytes());
+        }
+        body.release();
+        assertEquals(0, arena.getBodyBytes());
+        assertEquals(0, arena.getUsedBytes());
+    }
+
+    @Test
+    public void requestBodyStaysOnHeapIfArenaIsFull() throws IOException {
+        BodyArena arena = new BodyArena(256);
+        ByteBuffer full = arena.allocate(256);
+        RequestBody body = RequestBody.read(new ByteArrayInputStream(new byte[10]), 1024, arena);
+
+        assertEquals(10, body.getSize());
+        assertEquals(256, arena.getBodyBytes());
+        assertEquals(1, arena.getHeapFallbacks());
+        body.release();
+        arena.release(full);
+    }
+
+}
@@ -0,0 +1,72 @@
+package de.imbei.httpqueueserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Checks that tasks run once after their deadlines unless they are cancelled.
+ */
+public class DeadlineSchedulerTest {
+
+    private final DeadlineScheduler scheduler = new DeadlineScheduler();
+    private final List<Integer> expired = new CopyOnWriteArrayList<>();
+
+    @After
+    public void stopScheduler() {
+        scheduler.stop();
+    }
+
+    @Test
+    public void runsExpiredTasksInTheOrderOfTheirDeadlines() throws InterruptedException {
+        long now = System.currentTimeMillis();
+        CountDownLatch done = new CountDownLatch(1);
+        scheduler.schedule(now + 60, () -> expired.add(3));
+        scheduler.schedule(now + 20, () -> expired.add(1));
+        scheduler.schedule(now + 20, () -> expired.add(2));
+        scheduler.schedule(now + 80, done::countDown);
+        scheduler.schedule(now + 60000, () -> expired.add(4));
+        scheduler.start(10);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of(1, 2, 3), expired);
+        assertEquals(1, scheduler.size());
+    }
+
+    @Test
+    public void cancelledTaskDoesNotRun() throws InterruptedException {
+        long now = System.currentTimeMillis();
+        CountDownLatch done = new CountDownLatch(1);
+        DeadlineScheduler.Timeout cancelled = scheduler.schedule(now + 20, () -> expired.add(1));
+        DeadlineScheduler.Timeout timeout = scheduler.schedule(now + 40, done::countDown);
+        assertTrue(cancelled.cancel());
+        scheduler.start(10);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of(), expired);
+        // The task has already run.
+        assertFalse(timeout.cancel());
+        assertEquals(0, scheduler.size());
+    }
+
+    @Test
+    public void failingTaskDoesNotStopTheScheduler() throws InterruptedException {
+        long now = System.currentTimeMillis();
+        CountDownLatch done = new CountDownLatch(1);
+        scheduler.schedule(now, () -> {
+            throw new IllegalStateException("expected by the test");
+        });
+        scheduler.schedule(now + 20, done::countDown);
+        scheduler.start(10);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+}
@@ -0,0 +1,89 @@
+package de.imbei.httpqueueserver;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Checks the order in which a queue with a fair policy pops the requests.
+ * The requests are identified by their IDs, the clients by the header "X-Client"
+ * and the priorities by the header "X-Priority".
+ */
+public class FairSchedulerTest {
+
+    private final List<RequestData> popped = new ArrayList<>();
+
+    @After
+    public void releasePoppedRequests() {
+        popped.forEach(RequestData::release);
+    }
+
+    @Test
+    public void clientsAreServedByWeight() throws IOException, InterruptedException {
+        RequestQueue queue = fairQueue(Map.of("a", 2), 60000);
+        for (int i = 1; i <= 4; i++) {
+            add(queue, i, "a", 0);
+        }
+        for (int i = 11; i <= 13; i++) {
+            add(queue, i, "b", 0);
+        }
+
+        assertEquals(List.of(1, 2, 11, 3, 4, 12, 13), pollAll(queue));
+    }
+
+    @Test
+    public void higherPriorityIsPoppedFirst() throws IOException, InterruptedException {
+        RequestQueue queue = fairQueue(Map.of(), 60000);
+        add(queue, 1, "a", 2);
+        add(queue, 2, "b", 1);
+        add(queue, 3, "a", 0);
+        // Priorities out of range are clamped to the lowest one.
+        add(queue, 4, "a", 9);
+
+        assertEquals(List.of(3, 2, 1, 4), pollAll(queue));
+    }
+
+    @Test
+    public void starvingRequestIsPoppedRegardlessOfPriority()
+            throws IOException, InterruptedException {
+        RequestQueue queue = fairQueue(Map.of(), 50);
+        add(queue, 1, "a", 2);
+        Thread.sleep(100);
+        add(queue, 2, "a", 0);
+        add(queue, 3, "b", 0);
+
+        assertEquals(List.of(1, 2, 3), pollAll(queue));
+    }
+
+    private static RequestQueue fairQueue(Map<String, Integer> clientWeights,
+            long starvationMillis) {
+        Map<String, Integer> priorityRules = new LinkedHashMap<>();
+        priorityRules.put("low/", 2);
+        return new RequestQueue(null, null, new SchedulingPolicy(3, 1, "X-Priority",
+                priorityRules, "X-Client", clientWeights, starvationMillis));
+    }
+
+    private static void add(RequestQueue queue, int requestId, String client, int priority)
+            throws IOException {
+        queue.add(TestRequests.requestData(requestId, "low/" + requestId,
+                Map.of("X-Client", client, "X-Priority", Integer.toString(priority)),
+                new byte[0], 0));
+    }
+
+    private List<Integer> pollAll(RequestQueue queue) throws InterruptedException {
+        List<Integer> requestIds = new ArrayList<>();
+        RequestData requestData;
+        while ((requestData = queue.poll(0)) != null) {
+            popped.add(requestData);
+            requestIds.add(requestData.getRequestId());
+        }
+        return requestIds;
+    }
+
+}
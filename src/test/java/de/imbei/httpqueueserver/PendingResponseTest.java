@@ -0,0 +1,91 @@
+package de.imbei.httpqueueserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Checks that an expiry only ends the lease for which it has been scheduled.
+ */
+public class PendingResponseTest {
+
+    private final DeadlineScheduler scheduler = new DeadlineScheduler();
+    // The generations of the scheduled expiries
+    private final List<Integer> generations = new ArrayList<>();
+    private final List<RequestData> requeued = new ArrayList<>();
+    private final PendingResponse pendingResponse = new PendingResponse(1, 0, null, null);
+    private final RequestData requestData;
+
+    public PendingResponseTest() throws IOException {
+        requestData = TestRequests.requestData(1, "path", Map.of(), new byte[10], 0);
+    }
+
+    @After
+    public void releaseRequest() {
+        requestData.release();
+    }
+
+    private DeadlineScheduler.Timeout scheduleExpiry(int generation) {
+        generations.add(generation);
+        return scheduler.schedule(Long.MAX_VALUE, () -> {});
+    }
+
+    @Test
+    public void expiryOfCurrentGenerationRequeuesRequest() {
+        assertTrue(pendingResponse.startLease(requestData, this::scheduleExpiry));
+        pendingResponse.expireLease(generations.get(0), requeued::add);
+
+        assertEquals(List.of(requestData), requeued);
+        // The lease has ended, so there is nothing to requeue or to release.
+        pendingResponse.expireLease(generations.get(0), requeued::add);
+        assertEquals(1, requeued.size());
+        assertNull(pendingResponse.cancelLease());
+    }
+
+    @Test
+    public void expiryScheduledBeforeExtensionIsIgnored() {
+        pendingResponse.startLease(requestData, this::scheduleExpiry);
+        assertTrue(pendingResponse.extendLease(this::scheduleExpiry));
+        // Only the expiry of the extension is scheduled.
+        assertEquals(1, scheduler.size());
+
+        pendingResponse.expireLease(generations.get(0), requeued::add);
+        assertEquals(List.of(), requeued);
+        pendingResponse.expireLease(generations.get(1), requeued::add);
+        assertEquals(List.of(requestData), requeued);
+    }
+
+    @Test
+    public void expiryOfEarlierLeaseIsIgnored() {
+        // The request is leased, requeued and leased again.
+        pendingResponse.startLease(requestData, this::scheduleExpiry);
+        assertSame(requestData, pendingResponse.cancelLease());
+        assertEquals(0, scheduler.size());
+        pendingResponse.startLease(requestData, this::scheduleExpiry);
+
+        pendingResponse.expireLease(generations.get(0), requeued::add);
+        assertEquals(List.of(), requeued);
+        assertSame(requestData, pendingResponse.cancelLease());
+    }
+
+    @Test
+    public void answeredRequestCannotBeLeased() {
+        pendingResponse.startLease(requestData, this::scheduleExpiry);
+        assertSame(requestData, pendingResponse.closeLease());
+        assertEquals(0, scheduler.size());
+
+        assertFalse(pendingResponse.startLease(requestData, this::scheduleExpiry));
+        assertFalse(pendingResponse.extendLease(this::scheduleExpiry));
+        assertNull(pendingResponse.closeLease());
+    }
+
+}
@@ -0,0 +1,62 @@
+package de.imbei.httpqueueserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import org.junit.Test;
+
+/**
+ * Checks which requests are identical and can share one response.
+ */
+public class RequestCoalescingTest {
+
+    private final RequestCoalescing coalescing = new RequestCoalescing(
+            Pattern.compile("dash/.*"), List.of("Accept"));
+    private final RequestQueue queue = new RequestQueue(null, null, SchedulingPolicy.fifo());
+
+    @Test
+    public void identicalRequestsHaveTheSameKey() {
+        String key = key("GET", "dash/a", Map.of("Accept", "text/html"));
+        assertEquals(key, key("GET", "dash/a", Map.of("Accept", "text/html", "X-Other", "1")));
+
+        assertFalse(key.equals(key("GET", "dash/b", Map.of("Accept", "text/html"))));
+        assertFalse(key.equals(key("GET", "dash/a", Map.of("Accept", "application/json"))));
+        assertFalse(key.equals(key("HEAD", "dash/a", Map.of("Accept", "text/html"))));
+        RequestQueue namedQueue = new RequestQueue("named", null, SchedulingPolicy.fifo());
+        assertFalse(key.equals(coalescing.getKey(TestRequests.request("GET", "named/dash/a",
+                Map.of("Accept", "text/html"), new byte[0]), namedQueue)));
+    }
+
+    @Test
+    public void onlyMatchingSafeRequestsAreCoalesced() {
+        assertNull(key("GET", "other", Map.of()));
+        assertNull(key("POST", "dash/a", Map.of()));
+        assertNull(key("GET", "dash/a", Map.of("If-None-Match", "\"v1\"")));
+        assertNull(key("GET", "dash/a", Map.of("Range", "bytes=0-10")));
+    }
+
+    @Test
+    public void firstRequestInFlightIsJoined() {
+        String key = key("GET", "dash/a", Map.of());
+        PendingResponse leader = new PendingResponse(1, 0, queue, null);
+        PendingResponse follower = new PendingResponse(2, 0, queue, null);
+
+        assertNull(coalescing.putIfAbsent(key, leader));
+        assertSame(leader, coalescing.putIfAbsent(key, follower));
+        // Only the leader can remove its entry.
+        coalescing.remove(key, follower);
+        assertEquals(1, coalescing.size());
+        coalescing.remove(key, leader);
+        assertEquals(0, coalescing.size());
+    }
+
+    private String key(String method, String path, Map<String, String> headers) {
+        return coalescing.getKey(TestRequests.request(method, path, headers, new byte[0]), queue);
+    }
+
+}
@@ -0,0 +1,226 @@
+package de.imbei.httpqueueserver;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Writes events to the request log, simulates crashes by damaging the
+ * segment file and checks which requests are restored by the replay.
+ */
+public class RequestLogTest {
+
+    private static final long SEGMENT_SIZE = 1024 * 1024;
+    // length, type, request ID and CRC of a record
+    private static final int RECORD_OVERHEAD = 4 + 1 + 4 + 4;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<RequestLog.LoggedRequest> replayed = new ArrayList<>();
+
+    @After
+    public void releaseReplayedRequests() {
+        replayed.forEach(loggedRequest -> loggedRequest.getRequestData().release());
+    }
+
+    @Test
+    public void replayRestoresRequestsThatHaveNotBeenCompleted() throws IOException {
+        RequestLog log = startLog();
+        enqueue(log, 1, "queue", new byte[10]);
+        enqueue(log, 2, null, new byte[20]);
+        enqueue(log, 3, null, new byte[0]);
+        log.logPop(2);
+        log.logPop(3);
+        log.logComplete(3);
+        log.close();
+
+        assertEquals(List.of(1), replay(false));
+        assertEquals("queue", replayed.get(0).getQueueName());
+        assertEquals(10, replayed.get(0).getRequestData().getBody().getSize());
+    }
+
+    @Test
+    public void replayRequeuesPoppedRequestsIfLeasesAreUsed() throws IOException {
+        RequestLog log = startLog();
+        enqueue(log, 1, null, new byte[10]);
+        enqueue(log, 2, null, new byte[10]);
+        log.logPop(1);
+        log.logPop(2);
+        log.logRequeue(2);
+        log.close();
+
+        // The requeued request is queued before the one that was still leased.
+        assertEquals(List.of(2, 1), replay(true));
+    }
+
+    @Test
+    public void replayKeepsCompleteRecordsBeforeTruncation() throws IOException {
+        RequestLog log = startLog();
+        enqueue(log, 1, null, new byte[100]);
+        enqueue(log, 2, null, new byte[100]);
+        log.close();
+
+        // The server has stopped in the middle of the second record.
+        long secondRecord = recordLength(0);
+        try (FileChannel channel = openSegment()) {
+            channel.truncate(secondRecord + 50);
+        }
+
+        assertEquals(List.of(1), replay(false));
+    }
+
+    @Test
+    public void replayStopsAtCorruptedRecord() throws IOException {
+        RequestLog log = startLog();
+        enqueue(log, 1, null, new byte[100]);
+        enqueue(log, 2, null, new byte[100]);
+        enqueue(log, 3, null, new byte[100]);
+        log.close();
+
+        // Only a part of the second record has reached the storage device.
+        long secondRecord = recordLength(0);
+        try (FileChannel channel = openSegment()) {
+            channel.write(ByteBuffer.wrap(new byte[]{42}), secondRecord + RECORD_OVERHEAD + 10);
+        }
+
+        assertEquals(List.of(1), replay(false));
+    }
+
+    @Test
+    public void replaySkipsRecordsWhosePayloadHasNotBeenWritten() throws IOException {
+        RequestLog log = startLog();
+        enqueue(log, 1, null, new byte[100]);
+        enqueue(log, 2, null, new byte[100]);
+        enqueue(log, 3, null, new byte[100]);
+        log.logPop(1);
+        log.close();
+
+        // The server has stopped while the body of the second request was copied,
+        // after the third request had been logged completely.
+        long secondRecord = recordLength(0);
+        try (FileChannel channel = openSegment()) {
+            channel.write(ByteBuffer.wrap(new byte[]{5}), secondRecord + 4);
+        }
+
+        assertEquals(List.of(3), replay(false));
+    }
+
+    @Test
+    public void replayRestoresBodiesStoredInTemporaryFiles() throws IOException {
+        byte[] body = new byte[200000];
+        new Random(1).nextBytes(body);
+        RequestLog log = startLog();
+        // The body is larger than the memory threshold of 1 KiB.
+        RequestData requestData = new RequestData(TestRequests.request("upload", body), 1, null, 0, 1024, null);
+        log.logEnqueue(requestData, null, System.currentTimeMillis());
+        requestData.release();
+        log.close();
+
+        assertEquals(List.of(1), replay(false));
+        try (InputStream in = replayed.get(0).getRequestData().getBody().openStream()) {
+            assertArrayEquals(body, in.readAllBytes());
+        }
+    }
+
+    @Test
+    public void replayRestoresConcurrentlyWrittenRecords() throws Exception {
+        RequestLog log = startLog();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 1; i <= 200; i++) {
+            int requestId = i;
+            futures.add(executor.submit(() -> {
+                enqueue(log, requestId, null, new byte[requestId * 100]);
+                if (requestId % 2 == 0) {
+                    log.logPop(requestId);
+                    log.logComplete(requestId);
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        log.close();
+
+        List<Integer> requestIds = replay(false);
+        Collections.sort(requestIds);
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 1; i <= 200; i += 2) {
+            expected.add(i);
+        }
+        assertEquals(expected, requestIds);
+        for (RequestLog.LoggedRequest loggedRequest : replayed) {
+            RequestData requestData = loggedRequest.getRequestData();
+            assertEquals(requestData.getRequestId() * 100L, requestData.getBody().getSize());
+        }
+    }
+
+    private RequestLog startLog() throws IOException {
+        RequestLog log = new RequestLog(folder.getRoot().toPath(), SEGMENT_SIZE,
+                RequestLog.FsyncPolicy.NEVER, 0);
+        log.replay(Long.MAX_VALUE);
+        log.start();
+        return log;
+    }
+
+    // Replays the log like after a restart and returns the IDs of the restored requests.
+    private List<Integer> replay(boolean requeuePopped) throws IOException {
+        RequestLog log = new RequestLog(folder.getRoot().toPath(), SEGMENT_SIZE,
+                RequestLog.FsyncPolicy.NEVER, 0);
+        replayed.addAll(log.replay(Long.MAX_VALUE, requeuePopped));
+        log.close();
+        return replayed.stream()
+                .map(loggedRequest -> loggedRequest.getRequestData().getRequestId())
+                .collect(Collectors.toList());
+    }
+
+    private static void enqueue(RequestLog log, int requestId, String queueName, byte[] body)
+            throws IOException {
+        RequestData requestData = new RequestData(TestRequests.request("path/" + requestId, body),
+                requestId, null, 0, Long.MAX_VALUE, null);
+        try {
+            log.logEnqueue(requestData, queueName, System.currentTimeMillis());
+        } finally {
+            requestData.release();
+        }
+    }
+
+    private FileChannel openSegment() throws IOException {
+        return FileChannel.open(segmentFile(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private Path segmentFile() {
+        return folder.getRoot().toPath().resolve("segment-0.log");
+    }
+
+    // Returns the length of the record at the given position of the segment.
+    private long recordLength(long position) throws IOException {
+        try (FileChannel channel = openSegment()) {
+            ByteBuffer length = ByteBuffer.allocate(4);
+            channel.read(length, position);
+            return RECORD_OVERHEAD + length.getInt(0);
+        }
+    }
+
+}
@@ -0,0 +1,94 @@
+package de.imbei.httpqueueserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Checks that each request is either popped or cancelled exactly once.
+ */
+public class RequestQueueTest {
+
+    private final RequestQueue queue = new RequestQueue(null, null, SchedulingPolicy.fifo());
+    private final List<RequestData> popped = new ArrayList<>();
+
+    @After
+    public void releasePoppedRequests() {
+        popped.forEach(RequestData::release);
+    }
+
+    @Test
+    public void requestsArePoppedInOrderOfArrival() throws IOException, InterruptedException {
+        for (int i = 1; i <= 3; i++) {
+            queue.add(TestRequests.requestData(i, "path", Map.of(), new byte[i], 0));
+        }
+        assertEquals(3, queue.size());
+        assertEquals(6, queue.getBodyBytes());
+
+        assertEquals(List.of(1, 2), poll(2));
+        assertEquals(List.of(3), poll(2));
+        assertEquals(0, queue.size());
+        assertEquals(0, queue.getBodyBytes());
+        assertNull(queue.poll(0));
+    }
+
+    @Test
+    public void cancelledRequestIsSkipped() throws IOException, InterruptedException {
+        RequestData cancelled = TestRequests.requestData(1, "path", Map.of(), new byte[10], 0);
+        queue.add(cancelled);
+        queue.add(TestRequests.requestData(2, "path", Map.of(), new byte[20], 0));
+
+        assertTrue(queue.cancel(1));
+        assertFalse(queue.cancel(1));
+        assertEquals(1, queue.size());
+        assertEquals(20, queue.getBodyBytes());
+        assertEquals(List.of(2), poll(10));
+        // A popped request cannot be cancelled any more.
+        assertFalse(queue.cancel(2));
+    }
+
+    @Test
+    public void expiredRequestIsSkipped() throws IOException, InterruptedException {
+        queue.add(TestRequests.requestData(1, "path", Map.of(), new byte[0],
+                System.currentTimeMillis() - 1));
+        queue.add(TestRequests.requestData(2, "path", Map.of(), new byte[0],
+                System.currentTimeMillis() + 60000));
+
+        assertEquals(List.of(2), poll(10));
+    }
+
+    @Test
+    public void pollWaitsForRequest() throws InterruptedException {
+        Thread producer = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+                queue.add(TestRequests.requestData(1, "path", Map.of(), new byte[0], 0));
+            } catch (IOException | InterruptedException ex) {
+                throw new IllegalStateException(ex);
+            }
+        });
+        producer.start();
+
+        RequestData requestData = queue.poll(5_000_000_000L);
+        popped.add(requestData);
+        assertEquals(1, requestData.getRequestId());
+        producer.join();
+    }
+
+    // Pops up to maxRequests requests without waiting for the first one.
+    private List<Integer> poll(int maxRequests) throws InterruptedException {
+        List<RequestData> requests = queue.poll(maxRequests, 0, 0);
+        popped.addAll(requests);
+        return requests.stream().map(RequestData::getRequestId).collect(Collectors.toList());
+    }
+
+}
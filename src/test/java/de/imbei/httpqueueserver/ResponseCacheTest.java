@@ -0,0 +1,132 @@
+package de.imbei.httpqueueserver;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+/**
+ * Checks which responses are cached and how stale responses are revalidated.
+ */
+public class ResponseCacheTest {
+
+    private final ResponseCache cache = new ResponseCache(1 << 20, List.of("Accept"));
+    private final RequestQueue queue = new RequestQueue(null, null, SchedulingPolicy.fifo());
+
+    @Test
+    public void keyDependsOnVaryHeaders() {
+        String json = key(Map.of("Accept", "application/json"));
+        assertEquals(json, key(Map.of("Accept", "application/json", "User-Agent", "test")));
+        assertFalse(json.equals(key(Map.of("Accept", "text/html"))));
+
+        assertNull(key(Map.of("Authorization", "Bearer x")));
+        assertNull(key(Map.of("Cookie", "session=1")));
+        assertNull(key(Map.of("Cache-Control", "no-store")));
+        assertNull(cache.getKey(TestRequests.request("POST", "path", Map.of(), new byte[0]),
+                queue));
+    }
+
+    @Test
+    public void freshResponseIsCached() {
+        String key = key(Map.of());
+        cache.update(key, null, response(200, "Cache-Control", "max-age=60"));
+
+        ResponseCache.Entry entry = cache.get(key);
+        assertTrue(entry.isFresh(System.currentTimeMillis()));
+        ResponseData cached = ResponseCache.createResponse(entry, 5);
+        assertEquals(5, cached.getRequestId());
+        assertArrayEquals(new byte[]{1, 2, 3}, cached.getBody());
+        assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    public void uncacheableResponsesAreNotStored() {
+        cache.update("1", null, response(200, "Cache-Control", "private, max-age=60"));
+        cache.update("2", null, response(404, "Cache-Control", "max-age=60"));
+        cache.update("3", null, response(200, "Vary", "Cookie", "Cache-Control", "max-age=60"));
+        cache.update("4", null, response(200, "Set-Cookie", "a=1", "Cache-Control", "max-age=60"));
+        // Without freshness and validator, the response can never be used.
+        cache.update("5", null, response(200));
+
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getBytes());
+    }
+
+    @Test
+    public void notModifiedRefreshesStaleResponse() {
+        String key = key(Map.of());
+        cache.update(key, null, response(200, "ETag", "\"v1\"", "Cache-Control", "no-cache"));
+        ResponseCache.Entry stale = cache.get(key);
+        assertFalse(stale.isFresh(System.currentTimeMillis()));
+        assertEquals("\"v1\"", stale.getEtag());
+        assertTrue(stale.matches("W/\"v1\", \"v2\""));
+
+        ResponseData notModified = new ResponseData();
+        notModified.setRequestId(7);
+        notModified.setStatusCode(304);
+        notModified.setHeaders(new HashMap<>(Map.of("Cache-Control", List.of("max-age=60"))));
+        notModified.setBody(new byte[0]);
+        ResponseData refreshed = cache.update(key, stale, notModified);
+
+        assertEquals(7, refreshed.getRequestId());
+        assertEquals(200, refreshed.getStatusCode());
+        assertEquals("max-age=60", refreshed.getHeader("cache-control"));
+        assertArrayEquals(new byte[]{1, 2, 3}, refreshed.getBody());
+        assertTrue(cache.get(key).isFresh(System.currentTimeMillis()));
+    }
+
+    @Test
+    public void staleResponseIsRemovedIfNewResponseIsNotCacheable() {
+        String key = key(Map.of());
+        cache.update(key, null, response(200, "ETag", "\"v1\"", "Cache-Control", "no-cache"));
+        ResponseCache.Entry stale = cache.get(key);
+
+        cache.update(key, stale, response(200, "Cache-Control", "no-store"));
+        assertNull(cache.peek(key));
+    }
+
+    @Test
+    public void leastRecentlyUsedResponseIsEvicted() {
+        ResponseCache smallCache = new ResponseCache(200, List.of());
+        ResponseData large = response(200, "Cache-Control", "max-age=60");
+        large.setBody(new byte[60]);
+        smallCache.update("1", null, large);
+        smallCache.update("2", null, large);
+        assertNotNull(smallCache.get("1"));
+        smallCache.update("3", null, large);
+
+        assertNotNull(smallCache.peek("1"));
+        assertNull(smallCache.peek("2"));
+        assertNotNull(smallCache.peek("3"));
+        // Responses larger than the cache are not stored.
+        large.setBody(new byte[300]);
+        smallCache.update("4", null, large);
+        assertNull(smallCache.peek("4"));
+    }
+
+    private String key(Map<String, String> headers) {
+        return cache.getKey(TestRequests.request("GET", "path?q=1", headers, new byte[0]), queue);
+    }
+
+    // A response with the body {1, 2, 3} and the given header names and values
+    private static ResponseData response(int statusCode, String... headers) {
+        ResponseData responseData = new ResponseData();
+        responseData.setRequestId(1);
+        responseData.setStatusCode(statusCode);
+        Map<String, List<String>> headerMap = new HashMap<>();
+        for (int i = 0; i < headers.length; i += 2) {
+            headerMap.put(headers[i], List.of(headers[i + 1]));
+        }
+        responseData.setHeaders(headerMap);
+        responseData.setBody(new byte[]{1, 2, 3});
+        return responseData;
+    }
+
+}
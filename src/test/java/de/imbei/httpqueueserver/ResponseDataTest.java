@@ -0,0 +1,140 @@
+package de.imbei.httpqueueserver;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Reads responses in the forms that the polling module sends.
+ */
+public class ResponseDataTest {
+
+    @Test
+    public void jsonBodyIsDecodedWhileReading() throws IOException {
+        byte[] body = new byte[100000];
+        new Random(1).nextBytes(body);
+        String json = "{\"requestId\": 3, \"statusCode\": 201, "
+                + "\"headers\": {\"Content-Type\": [\"application/octet-stream\"]}, "
+                + "\"body\": \"" + Base64.getEncoder().encodeToString(body) + "\"}";
+
+        ResponseData responseData = ResponseData.readJson(new ResponseJsonReader(new StringReader(json)));
+        assertEquals(3, responseData.getRequestId());
+        assertEquals(201, responseData.getStatusCode());
+        assertEquals("application/octet-stream", responseData.getHeader("Content-Type"));
+        assertArrayEquals(body, responseData.getBody());
+    }
+
+    @Test
+    public void jsonArrayWithEscapesNullsAndUnknownFields() throws IOException {
+        // Some encoders escape the slashes of the Base64 alphabet.
+        String json = "[{\"requestId\":1,\"statusCode\":200,\"headers\":{},"
+                + "\"body\":\"" + Base64.getEncoder().encodeToString(new byte[]{-1, -1, -1})
+                        .replace("/", "\\/") + "\"},"
+                + " {\"requestId\":\"2\", \"statusCode\":404.0, \"headers\":null, \"body\":null,"
+                + " \"extra\":{\"nested\":[1, -2.5e3, true, false, null, \"\\\"}\"]}}]";
+        ResponseJsonReader reader = new ResponseJsonReader(new StringReader(json));
+        List<ResponseData> responses = new ArrayList<>();
+        assertEquals(true, reader.isArray());
+        reader.beginArray();
+        while (reader.hasNext()) {
+            responses.add(ResponseData.readJson(reader));
+        }
+        reader.endArray();
+
+        assertEquals(2, responses.size());
+        assertArrayEquals(new byte[]{-1, -1, -1}, responses.get(0).getBody());
+        assertEquals(2, responses.get(1).getRequestId());
+        assertEquals(404, responses.get(1).getStatusCode());
+        assertEquals(0, responses.get(1).getBody().length);
+    }
+
+    @Test
+    public void jsonBodyThatIsNotBase64IsRejected() {
+        String json = "{\"requestId\":1,\"statusCode\":200,\"body\":\"a$b=\"}";
+        assertThrows(IOException.class,
+                () -> ResponseData.readJson(new ResponseJsonReader(new StringReader(json))));
+    }
+
+    @Test
+    public void truncatedJsonIsRejected() {
+        String json = "{\"requestId\":1,\"statusCode\":200,\"body\":\"AAAA";
+        assertThrows(IOException.class,
+                () -> ResponseData.readJson(new ResponseJsonReader(new StringReader(json))));
+    }
+
+    @Test
+    public void binaryFrameRoundTrip() throws IOException {
+        ResponseData responseData = response(7, new byte[]{1, 2, 3});
+        DataInputStream in = frames(responseData, responseData);
+
+        for (int i = 0; i < 2; i++) {
+            ResponseData read = ResponseData.readBinary(in);
+            assertEquals(7, read.getRequestId());
+            assertEquals(200, read.getStatusCode());
+            assertEquals("text/plain", read.getHeader("content-type"));
+            assertArrayEquals(new byte[]{1, 2, 3}, read.getBody());
+        }
+        assertNull(ResponseData.readBinary(in));
+    }
+
+    @Test
+    public void binaryFrameWithNegativeBodyLengthIsRejected() throws IOException {
+        DataInputStream in = withBodyLength(-1, new byte[0]);
+        assertThrows(IOException.class, () -> ResponseData.readBinary(in));
+    }
+
+    @Test
+    public void binaryFrameWithForgedBodyLengthFailsWhenTheDataEnds() throws IOException {
+        // Nearly 2 GiB are announced, but only a few bytes follow.
+        DataInputStream in = withBodyLength(Integer.MAX_VALUE - 8, new byte[100]);
+        assertThrows(EOFException.class, () -> ResponseData.readBinary(in));
+    }
+
+    private static ResponseData response(int requestId, byte[] body) {
+        ResponseData responseData = new ResponseData();
+        responseData.setRequestId(requestId);
+        responseData.setStatusCode(200);
+        responseData.setHeaders(Map.of("Content-Type", List.of("text/plain")));
+        responseData.setBody(body);
+        return responseData;
+    }
+
+    private static DataInputStream frames(ResponseData... responses) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (ResponseData responseData : responses) {
+            responseData.writeBinary(out);
+        }
+        return new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    }
+
+    // A frame whose body length does not match the data that follows
+    private static DataInputStream withBodyLength(long bodyLength, byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        response(1, new byte[0]).writeBinary(out);
+        byte[] frame = bytes.toByteArray();
+        bytes.reset();
+        // Replace the body length at the end of the frame.
+        out.write(frame, 0, frame.length - 8);
+        out.writeLong(bodyLength);
+        out.write(data);
+        return new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    }
+
+}
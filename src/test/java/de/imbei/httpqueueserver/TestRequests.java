@@ -0,0 +1,83 @@
+package de.imbei.httpqueueserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Map;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Creates requests to /relay without a servlet container.
+ */
+final class TestRequests {
+
+    private TestRequests() {
+    }
+
+    // A request to /relay/{path}
+    static HttpServletRequest request(String method, String path, Map<String, String> headers,
+            byte[] body) {
+        ByteArrayInputStream bytes = new ByteArrayInputStream(body);
+        ServletInputStream in = new ServletInputStream() {
+            @Override
+            public int read() {
+                return bytes.read();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                return bytes.read(b, off, len);
+            }
+
+            @Override
+            public boolean isFinished() {
+                return bytes.available() == 0;
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setReadListener(ReadListener readListener) {}
+        };
+        return (HttpServletRequest) Proxy.newProxyInstance(TestRequests.class.getClassLoader(),
+                new Class<?>[]{HttpServletRequest.class}, (proxy, invoked, args) -> {
+                    switch (invoked.getName()) {
+                        case "getMethod":
+                            return method;
+                        case "getContextPath":
+                            return "";
+                        case "getServletPath":
+                            return "/relay";
+                        case "getRequestURI":
+                            return "/relay/" + path;
+                        case "getHeaderNames":
+                            return Collections.enumeration(headers.keySet());
+                        case "getHeader":
+                            return headers.get((String) args[0]);
+                        case "getInputStream":
+                            return in;
+                        default:
+                            return null;
+                    }
+                });
+    }
+
+    // A POST request to /relay/{path}
+    static HttpServletRequest request(String path, byte[] body) {
+        return request("POST", path, Map.of(), body);
+    }
+
+    // The data of a POST request to /relay/{path} as it is queued
+    static RequestData requestData(int requestId, String path, Map<String, String> headers,
+            byte[] body, long deadline) throws IOException {
+        return new RequestData(request("POST", path, headers, body), requestId, null,
+                deadline, Long.MAX_VALUE, null);
+    }
+
+}